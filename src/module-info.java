@@ -1,4 +1,6 @@
 module Place {
     requires transitive javafx.controls;
+    requires java.management;
     exports place.client.gui;
+    exports place.server to java.management;
 }
\ No newline at end of file
@@ -0,0 +1,82 @@
+package place;
+
+import java.io.IOException;
+
+/**
+ * Holds the state of every tile on a {@link PlaceBoard}.  Tiles are addressed
+ * by their index, row * DIM + col.  The board decides what the values mean;
+ * the storage only decides where they live.
+ *
+ * @author Jake Waclawski
+ */
+public interface BoardStorage {
+    /**
+     * Get the color number of a tile.
+     *
+     * @param index the tile index
+     * @return the color number
+     */
+    int getColor(int index);
+
+    /**
+     * Change the color number of a tile.
+     *
+     * @param index the tile index
+     * @param color the new color number
+     */
+    void setColor(int index, int color);
+
+    /**
+     * Get the owner id of a tile.
+     *
+     * @param index the tile index
+     * @return the owner id
+     */
+    int getOwnerId(int index);
+
+    /**
+     * Change the owner id of a tile.
+     *
+     * @param index the tile index
+     * @param ownerId the new owner id
+     */
+    void setOwnerId(int index, int ownerId);
+
+    /**
+     * Get the time a tile was changed.
+     *
+     * @param index the tile index
+     * @return the time
+     */
+    long getTime(int index);
+
+    /**
+     * Change the time a tile was changed.
+     *
+     * @param index the tile index
+     * @param time the new time
+     */
+    void setTime(int index, long time);
+
+    /**
+     * Get the sequence number of the last change made to the board.
+     *
+     * @return the sequence number
+     */
+    long getSequence();
+
+    /**
+     * Set the sequence number of the last change made to the board.
+     *
+     * @param sequence the sequence number
+     */
+    void setSequence(long sequence);
+
+    /**
+     * Make sure every change so far is written to wherever the storage keeps
+     * it.  Does nothing for storage that lives on the heap.
+     *
+     * @throws IOException if the changes could not be written
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,103 @@
+package place;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Keeps a board's tiles on the Java heap, in one primitive array per field.
+ *
+ * @author Jake Waclawski
+ */
+class HeapBoardStorage implements BoardStorage, Serializable {
+    /** the version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** the color number of each tile */
+    private byte[] colors;
+    /** the owner id of each tile */
+    private int[] owners;
+    /** the time each tile was changed, 0 for tiles that never were */
+    private long[] times;
+    /** the sequence number of the last change made to the board */
+    private volatile long sequence;
+
+    /**
+     * Create storage for a board of all white tiles.
+     *
+     * @param DIM the square dimension of the board
+     */
+    HeapBoardStorage(int DIM) {
+        this.colors = new byte[DIM * DIM];
+        this.owners = new int[DIM * DIM];
+        this.times = new long[DIM * DIM];
+        Arrays.fill(this.colors, (byte) PlaceColor.WHITE.getNumber());
+    }
+
+    /**
+     * Get the color number of a tile.
+     * @param index the tile index
+     * @return the color number
+     */
+    @Override
+    public int getColor(int index) { return this.colors[index]; }
+
+    /**
+     * Change the color number of a tile.
+     * @param index the tile index
+     * @param color the new color number
+     */
+    @Override
+    public void setColor(int index, int color) { this.colors[index] = (byte) color; }
+
+    /**
+     * Get the owner id of a tile.
+     * @param index the tile index
+     * @return the owner id
+     */
+    @Override
+    public int getOwnerId(int index) { return this.owners[index]; }
+
+    /**
+     * Change the owner id of a tile.
+     * @param index the tile index
+     * @param ownerId the new owner id
+     */
+    @Override
+    public void setOwnerId(int index, int ownerId) { this.owners[index] = ownerId; }
+
+    /**
+     * Get the time a tile was changed.
+     * @param index the tile index
+     * @return the time
+     */
+    @Override
+    public long getTime(int index) { return this.times[index]; }
+
+    /**
+     * Change the time a tile was changed.
+     * @param index the tile index
+     * @param time the new time
+     */
+    @Override
+    public void setTime(int index, long time) { this.times[index] = time; }
+
+    /**
+     * Get the sequence number of the last change made to the board.
+     * @return the sequence number
+     */
+    @Override
+    public long getSequence() { return this.sequence; }
+
+    /**
+     * Set the sequence number of the last change made to the board.
+     * @param sequence the sequence number
+     */
+    @Override
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
+    /**
+     * Nothing to do, the tiles only live on the heap.
+     */
+    @Override
+    public void flush() { }
+}
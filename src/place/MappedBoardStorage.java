@@ -0,0 +1,235 @@
+package place;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Keeps a board's tiles in a memory-mapped file instead of on the Java heap,
+ * so a board can be much larger than the heap and the operating system decides
+ * which parts stay in memory.  Every change goes straight into the mapping,
+ * and the file can be opened again later to carry on with the same board.
+ *
+ * The file starts with a header page holding a magic number, the format
+ * version, the board dimension and the last sequence number, followed by the
+ * colors (one byte per tile), the owner ids (four bytes per tile) and the
+ * times (eight bytes per tile), each starting on a page boundary.  A single
+ * mapping can not be larger than 2 GB, so each of these is mapped in chunks.
+ *
+ * @author Jake Waclawski
+ */
+public class MappedBoardStorage implements BoardStorage {
+    /** the number that every board file starts with, "PLCB" */
+    private static final int MAGIC = 0x504C4342;
+    /** the version of the file format */
+    private static final int VERSION = 1;
+    /** the size of a page, the header and every field start on a page boundary */
+    private static final int PAGE_SIZE = 4096;
+    /** where the sequence number is kept in the header */
+    private static final int SEQUENCE_OFFSET = 16;
+    /** log2 of the size of a chunk, 1 GB */
+    private static final int CHUNK_BITS = 30;
+    /** the size of a chunk, a power of two so no value is ever split between two chunks */
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    /** the board file */
+    private FileChannel channel;
+    /** the mapped header page */
+    private MappedByteBuffer header;
+    /** the mapped color numbers */
+    private MappedByteBuffer[] colors;
+    /** the mapped owner ids */
+    private MappedByteBuffer[] owners;
+    /** the mapped times */
+    private MappedByteBuffer[] times;
+
+    /**
+     * Map an open board file.
+     * @param channel the board file
+     * @param DIM the square dimension of the board
+     * @throws IOException if the file could not be mapped
+     */
+    private MappedBoardStorage(FileChannel channel, int DIM) throws IOException {
+        long cells = (long) DIM * DIM;
+        long colorsAt = PAGE_SIZE;
+        long ownersAt = pageAlign(colorsAt + cells);
+        long timesAt = pageAlign(ownersAt + cells * 4);
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+        this.colors = map(colorsAt, cells);
+        this.owners = map(ownersAt, cells * 4);
+        this.times = map(timesAt, cells * 8);
+    }
+
+    /**
+     * Open a board file, creating a board of all white tiles if the file
+     * does not exist yet.
+     * @param file the board file
+     * @param DIM the square dimension of the board
+     * @return the storage
+     * @throws IOException if the file could not be opened, or holds a board
+     * of another dimension
+     */
+    public static MappedBoardStorage open(Path file, int DIM) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean created = channel.size() == 0;
+            MappedBoardStorage storage = new MappedBoardStorage(channel, DIM);
+            if(created) {
+                storage.header.putInt(0, MAGIC);
+                storage.header.putInt(4, VERSION);
+                storage.header.putInt(8, DIM);
+                storage.header.putLong(SEQUENCE_OFFSET, 0);
+                storage.fillColors(PlaceColor.WHITE.getNumber());
+            } else if(storage.header.getInt(0) != MAGIC || storage.header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a board file");
+            } else if(storage.header.getInt(8) != DIM) {
+                throw new IOException(file + " holds a board of dimension " + storage.header.getInt(8) + ", not " + DIM);
+            }
+            return storage;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Round a file offset up to the next page boundary.
+     * @param offset the offset
+     * @return the rounded offset
+     */
+    private static long pageAlign(long offset) {
+        return (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Map part of the file, a chunk at a time.
+     * @param offset where the part starts
+     * @param length the length of the part
+     * @return the chunks
+     * @throws IOException if the file could not be mapped
+     */
+    private MappedByteBuffer[] map(long offset, long length) throws IOException {
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+        for(int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_BITS;
+            chunks[i] = this.channel.map(FileChannel.MapMode.READ_WRITE, offset + start, Math.min(CHUNK_SIZE, length - start));
+        }
+        return chunks;
+    }
+
+    /**
+     * Set every tile of a new board to the same color.
+     * @param color the color number
+     */
+    private void fillColors(int color) {
+        byte[] fill = new byte[64 * 1024];
+        Arrays.fill(fill, (byte) color);
+        for(MappedByteBuffer chunk : this.colors) {
+            ByteBuffer out = chunk.duplicate();
+            while(out.hasRemaining()) {
+                out.put(fill, 0, Math.min(fill.length, out.remaining()));
+            }
+        }
+    }
+
+    /**
+     * Get the color number of a tile.
+     * @param index the tile index
+     * @return the color number
+     */
+    @Override
+    public int getColor(int index) {
+        return this.colors[index >>> CHUNK_BITS].get(index & (int) (CHUNK_SIZE - 1));
+    }
+
+    /**
+     * Change the color number of a tile.
+     * @param index the tile index
+     * @param color the new color number
+     */
+    @Override
+    public void setColor(int index, int color) {
+        this.colors[index >>> CHUNK_BITS].put(index & (int) (CHUNK_SIZE - 1), (byte) color);
+    }
+
+    /**
+     * Get the owner id of a tile.
+     * @param index the tile index
+     * @return the owner id
+     */
+    @Override
+    public int getOwnerId(int index) {
+        long at = (long) index << 2;
+        return this.owners[(int) (at >>> CHUNK_BITS)].getInt((int) (at & (CHUNK_SIZE - 1)));
+    }
+
+    /**
+     * Change the owner id of a tile.
+     * @param index the tile index
+     * @param ownerId the new owner id
+     */
+    @Override
+    public void setOwnerId(int index, int ownerId) {
+        long at = (long) index << 2;
+        this.owners[(int) (at >>> CHUNK_BITS)].putInt((int) (at & (CHUNK_SIZE - 1)), ownerId);
+    }
+
+    /**
+     * Get the time a tile was changed.
+     * @param index the tile index
+     * @return the time
+     */
+    @Override
+    public long getTime(int index) {
+        long at = (long) index << 3;
+        return this.times[(int) (at >>> CHUNK_BITS)].getLong((int) (at & (CHUNK_SIZE - 1)));
+    }
+
+    /**
+     * Change the time a tile was changed.
+     * @param index the tile index
+     * @param time the new time
+     */
+    @Override
+    public void setTime(int index, long time) {
+        long at = (long) index << 3;
+        this.times[(int) (at >>> CHUNK_BITS)].putLong((int) (at & (CHUNK_SIZE - 1)), time);
+    }
+
+    /**
+     * Get the sequence number of the last change made to the board.
+     * @return the sequence number
+     */
+    @Override
+    public long getSequence() {
+        return this.header.getLong(SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Set the sequence number of the last change made to the board.
+     * @param sequence the sequence number
+     */
+    @Override
+    public void setSequence(long sequence) {
+        this.header.putLong(SEQUENCE_OFFSET, sequence);
+    }
+
+    /**
+     * Write every change so far out to the board file.
+     * @throws IOException if the changes could not be written
+     */
+    @Override
+    public void flush() throws IOException {
+        for(MappedByteBuffer[] field : new MappedByteBuffer[][] { this.colors, this.owners, this.times }) {
+            for(MappedByteBuffer chunk : field) {
+                chunk.force();
+            }
+        }
+        this.header.force();
+    }
+}
@@ -1,5 +1,6 @@
 package place;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -7,13 +8,26 @@ import java.io.Serializable;
  * the initial Board and then transmits it only once to each client that
  * successfully logs in to the server.
  *
+ * The tiles are not kept as objects.  Each tile's color, owner and time are
+ * kept by a {@link BoardStorage}, indexed by row * DIM + col, either in
+ * primitive arrays on the heap (about 13 bytes per tile) or in a memory-mapped
+ * file.  Owners are stored as the ids the server gives usernames (see
+ * {@link UserDictionary}).  {@link #getTile(int, int)} builds a tile from the
+ * storage when one is needed.
+ *
  * @author Sean Strout @ RIT CS
+ * @author Jake Waclawski
  */
 public class PlaceBoard implements Serializable {
     /** The square dimension of the board */
     public final int DIM;
-    /** The grid of tiles */
-    private PlaceTile[][] board;
+    /** The state of every tile */
+    private BoardStorage tiles;
+    /** The sequence number of the last change made to the board */
+    private volatile long sequence;
+
+    /** The place colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
 
     /**
      * Create a new board of all white tiles.
@@ -21,27 +35,24 @@ public class PlaceBoard implements Serializable {
      * @param DIM the square dimension of the board
      */
     public PlaceBoard(int DIM) {
-        this.DIM = DIM;
-        this.board = new PlaceTile[DIM][DIM];
-        for (int row=0; row<DIM; ++row) {
-            for (int col=0; col<DIM; ++col) {
-                this.board[row][col] =
-                        new PlaceTile(row, col, "", PlaceColor.WHITE);
-            }
-        }
+        this(DIM, new HeapBoardStorage(DIM));
     }
 
     /**
-     * Get the entire board.
+     * Create a board whose tiles are kept by the given storage.
      *
-     * @return the board
+     * @param DIM the square dimension of the board
+     * @param tiles the storage, already holding DIM * DIM tiles
      */
-    public PlaceTile[][] getBoard() {
-        return this.board;
+    public PlaceBoard(int DIM, BoardStorage tiles) {
+        this.DIM = DIM;
+        this.tiles = tiles;
+        this.sequence = tiles.getSequence();
     }
 
     /**
-     * Get a tile on the board
+     * Get a tile on the board.  The tile is a copy, changing it does not
+     * change the board.  It carries its owner's id but not the name.
      *
      * @param row row
      * @param col column
@@ -49,7 +60,10 @@ public class PlaceBoard implements Serializable {
      * @return the tile
      */
     public PlaceTile getTile(int row, int col){
-        return this.board[row][col];
+        int i = row * this.DIM + col;
+        PlaceTile tile = new PlaceTile(row, col, null, COLORS[this.tiles.getColor(i)], this.tiles.getTime(i));
+        tile.setOwnerId(this.tiles.getOwnerId(i));
+        return tile;
     }
 
     /**
@@ -59,7 +73,111 @@ public class PlaceBoard implements Serializable {
      * @rit.pre row and column constitute a valid board coordinate
      */
     public void setTile(PlaceTile tile) {
-        this.board[tile.getRow()][tile.getCol()] = tile;
+        int i = tile.getRow() * this.DIM + tile.getCol();
+        this.tiles.setColor(i, tile.getColor().getNumber());
+        this.tiles.setOwnerId(i, tile.getOwnerId());
+        this.tiles.setTime(i, tile.getTime());
+    }
+
+    /**
+     * Get the color of a tile.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the color
+     */
+    public PlaceColor getColor(int row, int col) {
+        return COLORS[this.tiles.getColor(row * this.DIM + col)];
+    }
+
+    /**
+     * Change the color of a tile.
+     *
+     * @param row row
+     * @param col column
+     * @param color the new color
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void setColor(int row, int col, PlaceColor color) {
+        this.tiles.setColor(row * this.DIM + col, color.getNumber());
+    }
+
+    /**
+     * Get the owner id of a tile.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the owner id, 0 if the tile was never changed
+     */
+    public int getOwnerId(int row, int col) {
+        return this.tiles.getOwnerId(row * this.DIM + col);
+    }
+
+    /**
+     * Change the owner id of a tile.
+     *
+     * @param row row
+     * @param col column
+     * @param ownerId the new owner id
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void setOwnerId(int row, int col, int ownerId) {
+        this.tiles.setOwnerId(row * this.DIM + col, ownerId);
+    }
+
+    /**
+     * Get the time a tile was changed.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the time, 0 if the tile was never changed
+     */
+    public long getTime(int row, int col) {
+        return this.tiles.getTime(row * this.DIM + col);
+    }
+
+    /**
+     * Change the time a tile was changed.
+     *
+     * @param row row
+     * @param col column
+     * @param time the new time
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void setTime(int row, int col, long time) {
+        this.tiles.setTime(row * this.DIM + col, time);
+    }
+
+    /**
+     * Get the sequence number of the last change made to the board.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Set the sequence number of the last change made to the board.
+     *
+     * @param sequence the sequence number
+     */
+    public void setSequence(long sequence) {
+        this.tiles.setSequence(sequence);
+        this.sequence = sequence;
+    }
+
+    /**
+     * Make sure every change made to the board so far is written to
+     * wherever its storage keeps it.
+     *
+     * @throws IOException if the changes could not be written
+     */
+    public void flush() throws IOException {
+        this.tiles.flush();
     }
 
     /**
@@ -86,7 +204,7 @@ public class PlaceBoard implements Serializable {
         for (int row=0; row<DIM; ++row) {
             builder.append("\n");
             for (int col=0; col<DIM; ++col) {
-                builder.append(this.board[row][col].getColor());
+                builder.append(getColor(row, col));
             }
         }
         return builder.toString();
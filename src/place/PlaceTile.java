@@ -17,6 +17,8 @@ public class PlaceTile implements Serializable {
     private PlaceColor color;
     /** the owner */
     private String user;
+    /** the id the server gave the owner's username, 0 for no owner */
+    private int userId;
 
     /**
      * the time the tile was changed, in milliseconds.  it is the difference,
@@ -25,6 +27,12 @@ public class PlaceTile implements Serializable {
      */
     private long time;
 
+    /**
+     * the sequence number the server gave the change to this tile, 0 if the
+     * tile has never been changed
+     */
+    private long sequence;
+
     /**
      * Create a tile (with no timestamp).
      *
@@ -96,6 +104,20 @@ public class PlaceTile implements Serializable {
      */
     public void setTime(long time) { this.time = time; }
 
+    /**
+     * Get the sequence number of the change to this tile.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() { return this.sequence; }
+
+    /**
+     * Set the sequence number of the change to this tile.
+     *
+     * @param sequence the sequence number
+     */
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
     public String getOwner() {
         return this.user;
     }
@@ -104,6 +126,21 @@ public class PlaceTile implements Serializable {
         this.user = user;
     }
 
+    /**
+     * Get the id of the tile's owner.  Tiles received from the server only
+     * carry the owner's id; the name is looked up separately when needed.
+     *
+     * @return the owner id, 0 for no owner
+     */
+    public int getOwnerId() { return this.userId; }
+
+    /**
+     * Set the id of the tile's owner.
+     *
+     * @param userId the owner id
+     */
+    public void setOwnerId(int userId) { this.userId = userId; }
+
     /**
      * Utility method for debugging only.
      *
@@ -115,8 +152,10 @@ public class PlaceTile implements Serializable {
                 "row=" + this.row +
                 ", col=" + this.col +
                 ", user=" + this.user +
+                ", userId=" + this.userId +
                 ", color=" + this.color +
                 ", time=" + this.time +
+                ", sequence=" + this.sequence +
                 '}';
     }
 }
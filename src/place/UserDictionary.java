@@ -0,0 +1,209 @@
+package place;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Maps usernames to small int ids and back. The server keeps one dictionary
+ * for everyone, gives each username an id when it logs in, and from then on
+ * stores and sends the id instead of the name. Id 0 always stands for no
+ * owner.
+ *
+ * A dictionary opened from a file appends every new username to the file
+ * and forces it to disk before handing out its id, so the ids stored in a
+ * board file still mean the same users when the server restarts. Names are
+ * written under the dictionary's lock but forced outside it, so a storm of
+ * new users shares a few forces instead of waiting on one each.
+ *
+ * @author Jake Waclawski
+ */
+public class UserDictionary {
+    /** the id of every known username */
+    private HashMap<String, Integer> ids;
+    /** the usernames, indexed by id */
+    private ArrayList<String> names;
+    /** the file new usernames are appended to, null if not kept in a file */
+    private FileChannel file;
+    /** the end of the names written to the file */
+    private volatile long written;
+    /** the end of the names forced to disk */
+    private volatile long forced;
+    /** held while forcing the file */
+    private final Object forceLock = new Object();
+
+    /**
+     * Create a new dictionary that only knows the empty owner.
+     */
+    public UserDictionary() {
+        this.ids = new HashMap<>();
+        this.names = new ArrayList<>();
+        this.ids.put("", 0);
+        this.names.add("");
+    }
+
+    /**
+     * Open a dictionary kept in a file, creating the file if it does not
+     * exist yet. The file holds every username in id order, each as a four
+     * byte length followed by its UTF-8 bytes. A name that was cut short by
+     * a crash is dropped.
+     *
+     * @param path the file
+     * @return the dictionary
+     * @throws IOException if the file could not be read
+     */
+    public static UserDictionary open(Path path) throws IOException {
+        UserDictionary dictionary = new UserDictionary();
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        while(in.remaining() >= 4) {
+            int length = in.getInt();
+            if(length < 0 || length > in.remaining()) {
+                in.position(in.position() - 4);
+                break;
+            }
+            String name = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            dictionary.ids.put(name, dictionary.names.size());
+            dictionary.names.add(name);
+        }
+        file.truncate(in.position());
+        file.position(in.position());
+        dictionary.file = file;
+        dictionary.written = in.position();
+        dictionary.forced = in.position();
+        return dictionary;
+    }
+
+    /**
+     * Get the id of a username, giving it the next free id if it does not
+     * have one yet. The id is only handed out once its name is on disk.
+     *
+     * @param name the username, null or empty for no owner
+     * @return the id
+     * @throws IOException if a new username could not be written to the
+     * dictionary's file, in which case it gets no id
+     */
+    public int getId(String name) throws IOException {
+        if(name == null) {
+            return 0;
+        }
+        int id;
+        long end;
+        synchronized (this) {
+            Integer known = this.ids.get(name);
+            if(this.file == null || known != null) {
+                if(known == null) {
+                    known = this.names.size();
+                    this.ids.put(name, known);
+                    this.names.add(name);
+                }
+                // the name may still be waiting for the force of whoever added it
+                end = this.written;
+                id = known;
+            } else {
+                end = append(name);
+                id = this.names.size();
+                this.ids.put(name, id);
+                this.names.add(name);
+            }
+        }
+        if(end > this.forced) {
+            force(end);
+        }
+        return id;
+    }
+
+    /**
+     * Append a new username to the dictionary's file, without forcing it to
+     * disk. A name that could not be written in full is cut off again. The
+     * dictionary's lock must be held.
+     *
+     * @param name the username
+     * @return the end of the file after the name
+     * @throws IOException if the name could not be written
+     */
+    private long append(String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(4 + bytes.length);
+        out.putInt(bytes.length);
+        out.put(bytes);
+        out.flip();
+        try {
+            while(out.hasRemaining()) {
+                this.file.write(out);
+            }
+        } catch (IOException e) {
+            this.file.truncate(this.written);
+            this.file.position(this.written);
+            throw e;
+        }
+        this.written = this.file.position();
+        return this.written;
+    }
+
+    /**
+     * Force the file to disk up to a point, so no change stored with an id
+     * can reach the disk before its name. One force covers every name
+     * written before it, so threads waiting here behind a force usually
+     * find their name already on disk.
+     *
+     * @param end the end of the names that must be on disk
+     * @throws IOException if the file could not be forced
+     */
+    private void force(long end) throws IOException {
+        synchronized (this.forceLock) {
+            if(end <= this.forced) {
+                return;
+            }
+            long target = this.written;
+            this.file.force(false);
+            this.forced = target;
+        }
+    }
+
+    /**
+     * Learn a username whose id was handed out by another dictionary, the
+     * one kept by the leader of a cluster. Ids may arrive out of order; the
+     * ones not known yet in between have no name until they arrive.
+     *
+     * @param id the id
+     * @param name the username
+     */
+    public synchronized void put(int id, String name) {
+        if(id <= 0) {
+            return;
+        }
+        while(this.names.size() <= id) {
+            this.names.add(null);
+        }
+        this.names.set(id, name);
+        this.ids.put(name, id);
+    }
+
+    /**
+     * Get the username with an id.
+     *
+     * @param id the id
+     * @return the username, empty for no owner, null if the id was never
+     * handed out
+     */
+    public synchronized String getName(int id) {
+        return id >= 0 && id < this.names.size() ? this.names.get(id) : null;
+    }
+
+    /**
+     * Get the number of ids handed out, counting the one for no owner.
+     *
+     * @return the number of ids
+     */
+    public synchronized int size() {
+        return this.names.size();
+    }
+}
@@ -136,7 +136,7 @@ class Bot extends Thread {
         do {
             row = new Random().nextInt(this.model.getDim());
             col = new Random().nextInt(this.model.getDim());
-        } while(this.model.getTiles()[row][col].getColor().equals(color));
+        } while(this.model.getColor(row, col).equals(color));
         return new PlaceTile(row, col, this.username, color);
     }
 
@@ -155,7 +155,7 @@ class Bot extends Thread {
         do {
             row = lowRowBound + (new Random().nextInt(highRowBound - lowRowBound + 1));
             col = lowColBound + (new Random().nextInt(highColBound - lowColBound + 1));
-        } while(this.model.getTiles()[row][col].getColor().equals(color));
+        } while(this.model.getColor(row, col).equals(color));
         return new PlaceTile(row, col, this.username, color);
     }
 
@@ -171,7 +171,7 @@ class Bot extends Thread {
             row = new Random().nextInt(this.model.getDim());
             col = new Random().nextInt(this.model.getDim());
             toColor = new Random().nextInt(PlaceColor.TOTAL_COLORS);
-        } while(!this.model.getTiles()[row][col].getColor().equals(color) || toColor == color.getNumber());
+        } while(!this.model.getColor(row, col).equals(color) || toColor == color.getNumber());
 
         return new PlaceTile(row, col, this.username, PlaceColor.values()[toColor]);
     }
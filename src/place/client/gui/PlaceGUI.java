@@ -3,6 +3,7 @@ package place.client.gui;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.ScrollPane;
@@ -34,6 +35,8 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
     private static final int WINDOW_SIDE = 725;
     /** the size of the color selection button height */
     private static final int COLOR_SELECTION_HEIGHT = 25;
+    /** the number of tiles the part of the board shown is rounded out to, so panning a little does not resubscribe */
+    private static final int REGION_STEP = 8;
     /** the connection to the server */
     private NetworkClient serverConnection;
     /** the client socket's username */
@@ -98,7 +101,9 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 
         Scene scene = new Scene(placeWindow, WINDOW_SIDE, WINDOW_SIDE + COLOR_SELECTION_HEIGHT);
 
-        this.placeWindow.setCenter(new ZoomableScrollPane(createTiles(), this.model.getDim()));
+        ZoomableScrollPane board = new ZoomableScrollPane(createTiles(), this.model.getDim());
+        board.setOnViewportChanged(this::viewportChanged);
+        this.placeWindow.setCenter(board);
         this.placeWindow.setBottom(createColorSelect());
         this.colorSelect.setAlignment(Pos.CENTER);
         this.scrollPane.setContent(tiles);
@@ -137,7 +142,8 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 
         for(int r = 0; r < dim; r++){
             for(int c = 0; c < dim; c++){
-                Tile tile = new Tile(this.model.getTiles()[r][c], WINDOW_SIDE / model.getDim());
+                Tile tile = new Tile(this.model.getTile(r, c), WINDOW_SIDE / model.getDim(), this.serverConnection::lookUpUsername,
+                        (shown, callback) -> this.serverConnection.lookUpHistory(shown.getRow(), shown.getCol(), callback));
                 PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "New tile created at (" + r + ", " + c + ")");
                 tile.setOnMouseClicked(e -> {
                     if(this.selectedColor != null && e.getButton() == MouseButton.PRIMARY) {
@@ -185,6 +191,23 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
         return colorSelect;
     }
 
+    /**
+     * Subscribe to the part of the board shown, so the server only sends
+     * changes inside it. The part is rounded out to whole steps of tiles.
+     * @param shown the part shown, in fractions of the board's width and height
+     */
+    private void viewportChanged(Rectangle2D shown) {
+        int dim = this.model.getDim();
+        // the grid's columns are the board's rows
+        int row = (int) Math.floor(shown.getMinX() * dim) / REGION_STEP * REGION_STEP;
+        int col = (int) Math.floor(shown.getMinY() * dim) / REGION_STEP * REGION_STEP;
+        int rowEnd = Math.min(dim, ((int) Math.ceil(shown.getMaxX() * dim) + REGION_STEP - 1) / REGION_STEP * REGION_STEP);
+        int colEnd = Math.min(dim, ((int) Math.ceil(shown.getMaxY() * dim) + REGION_STEP - 1) / REGION_STEP * REGION_STEP);
+        if(rowEnd > row && colEnd > col) {
+            this.serverConnection.subscribe(row, col, rowEnd - row, colEnd - col);
+        }
+    }
+
     /**
      * Gets an element from the grid of tiles.
      * @param col the column the tile is located
@@ -1,5 +1,6 @@
 package place.client.gui.elements;
 
+import javafx.application.Platform;
 import javafx.scene.control.Tooltip;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Rectangle;
@@ -8,11 +9,15 @@ import place.PlaceTile;
 import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Represents a GUI tile on the place board. Contains information
  * such as its location, the actual PlaceTile object it holds, and
- * its Tooltip.
+ * its Tooltip. Tiles only know the id of their owner, so the owner's
+ * name is looked up the first time the Tooltip is shown. The Tooltip
+ * also fetches and lists the tile's recent changes each time it is shown.
  *
  * @author Jake Waclawski
  */
@@ -23,27 +28,36 @@ public class Tile extends Rectangle implements Serializable {
     private Tooltip info;
     /** the PlaceTile object stored in the tile */
     private PlaceTile tile;
+    /** looks up the username with a user id */
+    private BiConsumer<Integer, Consumer<String>> usernames;
+    /** looks up the recent changes to a tile */
+    private BiConsumer<PlaceTile, Consumer<PlaceTile[]>> histories;
+    /** the recent changes to the tile, newest first, null until fetched */
+    private PlaceTile[] history;
 
     /**
      * Create a new Tile object and initialize its appearance on the GUI board.
      * @param tile the PlaceTile object to store
      * @param side the side length of the rectangle
+     * @param usernames looks up the username with a user id
+     * @param histories looks up the recent changes to a tile
      */
-    public Tile(PlaceTile tile, int side) {
+    public Tile(PlaceTile tile, int side, BiConsumer<Integer, Consumer<String>> usernames, BiConsumer<PlaceTile, Consumer<PlaceTile[]>> histories) {
         this.setWidth(side);
         this.setHeight(side);
         this.setFill(Color.rgb(tile.getColor().getRed(), tile.getColor().getGreen(), tile.getColor().getBlue()));
         this.tile = tile;
+        this.usernames = usernames;
+        this.histories = histories;
         this.info = new Tooltip();
+        this.info.setOnShowing(e -> {
+            lookUpOwner();
+            lookUpHistory();
+        });
 
         Tooltip.install(this, info);
 
-        if(tile.getTime() == 0) {
-            info.setText("(" + tile.getRow() + ", " + tile.getCol() + ") " + tile.getColor().getName() + "\noriginal tile");
-        } else {
-            info.setText("(" + tile.getRow() + ", " + tile.getCol() + ") " +
-                    tile.getColor().getName() + "\n" + tile.getOwner() + "\n" + DATE_TIME_FORMAT.format(tile.getTime()));
-        }
+        updateInfo();
     }
 
     /**
@@ -52,9 +66,75 @@ public class Tile extends Rectangle implements Serializable {
      */
     public void setTile(PlaceTile tile) {
         this.tile = tile;
+        this.history = null;
         this.setFill(Color.rgb(tile.getColor().getRed(), tile.getColor().getGreen(), tile.getColor().getBlue()));
-        info.setText("(" + tile.getRow() + ", " + tile.getCol() + ") " +
-                tile.getColor().getName() + "\n" + tile.getOwner() + "\n" + DATE_TIME_FORMAT.format(tile.getTime()));
+        updateInfo();
+        if(info.isShowing()) {
+            lookUpOwner();
+            lookUpHistory();
+        }
+    }
+
+    /**
+     * Set the Tooltip text for the stored PlaceTile.
+     */
+    private void updateInfo() {
+        StringBuilder text = new StringBuilder();
+        if(tile.getTime() == 0) {
+            text.append("(" + tile.getRow() + ", " + tile.getCol() + ") " + tile.getColor().getName() + "\noriginal tile");
+        } else {
+            text.append("(" + tile.getRow() + ", " + tile.getCol() + ") " +
+                    tile.getColor().getName() + "\n" + (tile.getOwner() == null ? "..." : tile.getOwner()) + "\n" + DATE_TIME_FORMAT.format(tile.getTime()));
+        }
+        if(history != null && history.length > 1) {
+            text.append("\n\nEarlier:");
+            // the first change is the tile as it is now
+            for(int i = 1; i < history.length; i++) {
+                text.append("\n" + history[i].getColor().getName() + " by " + (history[i].getOwner() == null ? "..." : history[i].getOwner()) + ", " + DATE_TIME_FORMAT.format(history[i].getTime()));
+            }
+        }
+        info.setText(text.toString());
+    }
+
+    /**
+     * Look up the name of the stored PlaceTile's owner if it is not known
+     * yet, and show it once it arrives.
+     */
+    private void lookUpOwner() {
+        PlaceTile shown = this.tile;
+        if(shown.getTime() != 0 && shown.getOwner() == null) {
+            usernames.accept(shown.getOwnerId(), name -> Platform.runLater(() -> {
+                shown.setOwner(name);
+                if(this.tile == shown) {
+                    updateInfo();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Fetch the recent changes to the stored PlaceTile and show them, along
+     * with the names of their owners once they arrive.
+     */
+    private void lookUpHistory() {
+        PlaceTile shown = this.tile;
+        histories.accept(shown, changes -> Platform.runLater(() -> {
+            if(this.tile != shown) {
+                return;
+            }
+            this.history = changes;
+            updateInfo();
+            for(PlaceTile change : changes) {
+                if(change.getTime() != 0 && change.getOwner() == null) {
+                    usernames.accept(change.getOwnerId(), name -> Platform.runLater(() -> {
+                        change.setOwner(name);
+                        if(this.history == changes) {
+                            updateInfo();
+                        }
+                    }));
+                }
+            }
+        }));
     }
 
     /**
@@ -3,6 +3,7 @@ package place.client.gui.elements;
 import javafx.geometry.Bounds;
 import javafx.geometry.Point2D;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Group;
 import javafx.scene.Node;
 import javafx.scene.control.ScrollPane;
@@ -10,6 +11,8 @@ import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.VBox;
 
+import java.util.function.Consumer;
+
 /**
  * Represents a JavaFX ScrollPane that is also zoomable.
  *
@@ -23,6 +26,8 @@ public class ZoomableScrollPane extends ScrollPane {
     private Node zoomNode;
     /** the dimension of the GUI board */
     private int DIM;
+    /** called with the part of the target shown whenever it changes, null if nobody listens */
+    private Consumer<Rectangle2D> onViewportChanged;
 
     /**
      * Create a new zoomable ScrollPane.
@@ -45,6 +50,56 @@ public class ZoomableScrollPane extends ScrollPane {
         setPannable(true);
 
         updateScale();
+
+        hvalueProperty().addListener((observable, oldValue, newValue) -> viewportChanged());
+        vvalueProperty().addListener((observable, oldValue, newValue) -> viewportChanged());
+        viewportBoundsProperty().addListener((observable, oldValue, newValue) -> viewportChanged());
+    }
+
+    /**
+     * Set the listener told which part of the target is shown, whenever it
+     * is panned or zoomed.
+     * @param listener called with the part shown, in fractions of the
+     * target's width and height
+     */
+    public void setOnViewportChanged(Consumer<Rectangle2D> listener) {
+        this.onViewportChanged = listener;
+        viewportChanged();
+    }
+
+    /**
+     * Tell the listener which part of the target is shown.
+     */
+    private void viewportChanged() {
+        if(this.onViewportChanged == null) {
+            return;
+        }
+        Bounds viewportBounds = getViewportBounds();
+        Bounds contentBounds = getContent().getLayoutBounds();
+        Bounds targetBounds = zoomNode.getBoundsInParent();
+        if(targetBounds.getWidth() <= 0 || targetBounds.getHeight() <= 0) {
+            return;
+        }
+
+        // pixel offset of the viewport into the content
+        double x = this.getHvalue() * Math.max(0, contentBounds.getWidth() - viewportBounds.getWidth());
+        double y = this.getVvalue() * Math.max(0, contentBounds.getHeight() - viewportBounds.getHeight());
+
+        double left = toFraction(x - targetBounds.getMinX(), targetBounds.getWidth());
+        double top = toFraction(y - targetBounds.getMinY(), targetBounds.getHeight());
+        double right = toFraction(x + viewportBounds.getWidth() - targetBounds.getMinX(), targetBounds.getWidth());
+        double bottom = toFraction(y + viewportBounds.getHeight() - targetBounds.getMinY(), targetBounds.getHeight());
+        this.onViewportChanged.accept(new Rectangle2D(left, top, right - left, bottom - top));
+    }
+
+    /**
+     * Turn a pixel offset into the target into a fraction of its size.
+     * @param offset the offset
+     * @param size the size of the target
+     * @return the fraction, between 0 and 1
+     */
+    private static double toFraction(double offset, double size) {
+        return Math.min(1.0, Math.max(0.0, offset / size));
     }
 
     /**
@@ -115,6 +170,7 @@ public class ZoomableScrollPane extends ScrollPane {
             Bounds updatedInnerBounds = zoomNode.getBoundsInLocal();
             this.setHvalue((valX + adjustment.getX()) / (updatedInnerBounds.getWidth() - viewportBounds.getWidth()));
             this.setVvalue((valY + adjustment.getY()) / (updatedInnerBounds.getHeight() - viewportBounds.getHeight()));
+            viewportChanged();
         } else {
             scaleValue = scaleValue / zoomFactor;
         }
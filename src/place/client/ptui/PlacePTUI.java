@@ -97,10 +97,9 @@ public class PlacePTUI extends ConsoleApplication implements Observer<ClientMode
      * Output the updated board to the client.
      */
     private void refresh() {
-        PlaceTile[][] tiles = this.model.getTiles();
-        for(int r = 0; r < tiles.length; r++){
-            for(int c = 0; c < tiles[0].length; c++){
-                userOut.print(tiles[r][c].getColor().getNumber());
+        for(int r = 0; r < this.model.getDim(); r++){
+            for(int c = 0; c < this.model.getDim(); c++){
+                userOut.print(this.model.getColor(r, c).getNumber());
             }
             userOut.println();
         }
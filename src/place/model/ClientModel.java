@@ -18,7 +18,7 @@ public class ClientModel {
     /** observers of the model (PlacePTUI and PlaceGUI - the "views") */
     private List<Observer<ClientModel, PlaceTile>> observers = new LinkedList<>();
     /** the actual board of tiles */
-    private static PlaceTile[][] tiles;
+    private static PlaceBoard board;
 
     /**
      * Add a new observer.
@@ -43,10 +43,21 @@ public class ClientModel {
      * @param board the place board
      */
     static void initBoard(PlaceBoard board) {
-        tiles = new PlaceTile[board.DIM][board.DIM];
-        for(int r = 0; r < tiles.length; r++){
-            for(int c = 0; c < tiles[0].length; c++){
-                tiles[r][c] = board.getTile(r, c);
+        ClientModel.board = board;
+    }
+
+    /**
+     * Bring the board up to date with a fresh copy sent by the server,
+     * for example after the client fell behind. Observers are only
+     * notified of the tiles that actually differ.
+     * @param fresh the place board
+     */
+    void resync(PlaceBoard fresh) {
+        for(int r = 0; r < board.DIM; r++){
+            for(int c = 0; c < board.DIM; c++){
+                if(fresh.getColor(r, c) != board.getColor(r, c) || fresh.getTime(r, c) != board.getTime(r, c)) {
+                    tileChanged(fresh.getTile(r, c));
+                }
             }
         }
     }
@@ -69,19 +80,30 @@ public class ClientModel {
      * @param tile the tile to change
      */
     void tileChanged(PlaceTile tile) {
-        tiles[tile.getRow()][tile.getCol()] = tile;
+        board.setTile(tile);
         notifyObservers(tile);
     }
 
     /**
-     * Get the matrix of place tiles.
-     * @return the tiles
+     * Get a tile on the board. The tile is a copy, changing it does
+     * not change the board.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the tile
+     */
+    public PlaceTile getTile(int row, int col) { return board.getTile(row, col); }
+
+    /**
+     * Get the color of a tile on the board.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the color
      */
-    public PlaceTile[][] getTiles() { return tiles; }
+    public PlaceColor getColor(int row, int col) { return board.getColor(row, col); }
 
     /**
      * Get the dimensions of the board.
      * @return the dimension
      */
-    public int getDim() { return tiles.length; }
+    public int getDim() { return board.DIM; }
 }
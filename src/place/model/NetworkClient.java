@@ -1,15 +1,26 @@
 package place.model;
 
 import place.PlaceBoard;
+import place.PlaceColor;
 import place.PlaceException;
 import place.PlaceTile;
+import place.network.PlaceCodec;
 import place.network.PlaceRequest;
 import place.PlaceLogger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 /**
  * Represents a client in the network. Reads and handles
@@ -18,22 +29,44 @@ import java.net.Socket;
  * @author Jake Waclawski
  */
 public class NetworkClient extends Thread {
+    /** the number of times the client tries to reconnect before giving up */
+    private static final int RECONNECT_ATTEMPTS = 10;
+    /** the wait before the first reconnect attempt, in milliseconds */
+    private static final long RECONNECT_BACKOFF = 250;
+    /** the longest wait between reconnect attempts, in milliseconds */
+    private static final long RECONNECT_BACKOFF_MAX = 8000;
+    /** the server's host name */
+    private String host;
+    /** the server's port */
+    private int port;
+    /** the client's username */
+    private String username;
     /** the client socket connection to the server */
-    private Socket clientSocket;
+    private volatile Socket clientSocket;
     /** the incoming connection from the server */
-    private ObjectInputStream networkIn;
+    private DataInputStream networkIn;
     /** the outgoing connection to the server */
-    private ObjectOutputStream networkOut;
+    private volatile OutputStream networkOut;
     /** the client model */
     private ClientModel model;
     /** the client's number */
     private int clientNumber;
     /** boolean value if the client should listen for server messages */
-    private boolean go;
+    private volatile boolean go;
     /** boolean value if the client is ready to place another tile */
     private boolean ready;
     /** boolean value if using client numbers, which are sent from the server */
     private boolean usingClientNumbers;
+    /** the sequence number of the last change received, -1 before the board arrives */
+    private long lastSequence;
+    /** the usernames looked up so far, by user id */
+    private HashMap<Integer, String> usernames;
+    /** the callbacks waiting on a username lookup, by user id */
+    private HashMap<Integer, List<Consumer<String>>> lookups;
+    /** the callbacks waiting on a tile history, by tile index */
+    private HashMap<Integer, List<Consumer<PlaceTile[]>>> histories;
+    /** the top row, left column, height and width of the part of the board shown, null for all of it */
+    private volatile int[] region;
 
     /**
      * Represents a client connected to the network.
@@ -43,54 +76,146 @@ public class NetworkClient extends Thread {
      * @param model the client model
      */
     public NetworkClient(String host, int port, String username, ClientModel model) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.model = model;
+        this.go = true;
+        this.usingClientNumbers = true;
+        this.lastSequence = -1;
+        this.usernames = new HashMap<>();
+        this.lookups = new HashMap<>();
+        this.histories = new HashMap<>();
         try {
-            this.clientSocket = new Socket(host, port);
-            this.networkOut = new ObjectOutputStream(this.clientSocket.getOutputStream());
-            this.networkIn = new ObjectInputStream(this.clientSocket.getInputStream());
-            this.model = model;
-            this.go = true;
-            this.ready = true;
-            this.usingClientNumbers = true;
-
-            networkOut.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, username));
-
-            boolean proceed = false;
-            while (!proceed) {
-                PlaceRequest<?> response = (PlaceRequest<?>) this.networkIn.readUnshared();
-                PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Server " + response.toString());
-                switch (response.getType()) {
-                    case LOGIN_SUCCESS:
-                        try {
-                            this.clientNumber = (Integer) response.getData();
-                        } catch(Exception e) {
-                            this.clientNumber = -1;
-                            this.usingClientNumbers = false;
-                            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
-                        }
-                        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Assigned client number: " + this.clientNumber);
-                        PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), "Successfully logged in with username: " + username);
-                        break;
-                    case ERROR:
-                        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Failed to log in, username taken: " + username);
-                        shutDown();
-                        break;
-                    case BOARD:
-                        ClientModel.initBoard((PlaceBoard) response.getData());
-                        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "PlaceBoard received from server and initialized");
-                        proceed = true;
-                        break;
-                    default:
-                        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Unexpected type: " + response.getType());
-                        break;
-                }
+            if(!connect()) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Failed to log in as " + username + ", the username is taken or the server is busy");
+                shutDown();
             }
-        } catch (ClassNotFoundException e) {
-            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
         } catch (IOException e) {
             PlaceLogger.log(PlaceLogger.LogType.FATAL, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
         }
     }
 
+    /**
+     * Connect to the server and log in. After the first login the client
+     * sends the sequence number of the last change it saw, so the server
+     * can send just the changes it missed instead of the whole board.
+     * Returns once logged in and, on the first login, once the board has
+     * been received. User ids may have changed if the server restarted, so
+     * the usernames looked up so far are forgotten.
+     * @return true if logged in, false if the username is taken or the
+     * server is too busy
+     * @throws IOException if a network error occurs
+     */
+    private boolean connect() throws IOException {
+        this.clientSocket = new Socket(this.host, this.port);
+        this.networkOut = new BufferedOutputStream(this.clientSocket.getOutputStream());
+        this.networkIn = new DataInputStream(new BufferedInputStream(this.clientSocket.getInputStream()));
+        this.ready = true;
+        synchronized (this.usernames) {
+            this.usernames.clear();
+            this.lookups.clear();
+        }
+        synchronized (this.histories) {
+            this.histories.clear();
+        }
+
+        if(this.lastSequence >= 0) {
+            this.networkOut.write(PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.RESUME, this.lastSequence)));
+        }
+        PlaceCodec.write(this.networkOut, new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, this.username));
+
+        boolean loggedIn = false;
+        while (!loggedIn || this.lastSequence < 0) {
+            PlaceRequest<?> response = PlaceCodec.read(this.networkIn);
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Server " + response.toString());
+            switch (response.getType()) {
+                case LOGIN_SUCCESS:
+                    try {
+                        this.clientNumber = (Integer) response.getData();
+                    } catch(Exception e) {
+                        this.clientNumber = -1;
+                        this.usingClientNumbers = false;
+                        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+                    }
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Assigned client number: " + this.clientNumber);
+                    PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), "Successfully logged in with username: " + this.username);
+                    loggedIn = true;
+                    break;
+                case ERROR:
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Login refused: " + response.getData());
+                    this.clientSocket.close();
+                    return false;
+                case BOARD:
+                    PlaceBoard board = (PlaceBoard) response.getData();
+                    ClientModel.initBoard(board);
+                    this.lastSequence = board.getSequence();
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "PlaceBoard received from server and initialized");
+                    break;
+                case TILE_CHANGED:
+                case TILES_CHANGED:
+                    // also part of the board or missed changes still to come
+                    break;
+                default:
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Unexpected type: " + response.getType());
+                    break;
+            }
+        }
+        int[] shown = this.region;
+        if(shown != null) {
+            PlaceCodec.write(this.networkOut, new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, shown));
+        }
+        return true;
+    }
+
+    /**
+     * Reconnect to the server after the connection dropped, waiting a little
+     * longer after each failed attempt. After {@link #RECONNECT_ATTEMPTS}
+     * failed attempts, or if interrupted, it gives up and stops the client,
+     * so run() does not try again.
+     * @return true if the client reconnected, false if it gave up or was
+     * shut down in the meantime
+     */
+    private boolean reconnect() {
+        try {
+            this.clientSocket.close();
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), e.getMessage());
+        }
+        long backoff = RECONNECT_BACKOFF;
+        for(int attempt = 1; attempt <= RECONNECT_ATTEMPTS && this.go; attempt++) {
+            try {
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            try {
+                if(connect()) {
+                    PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), "Reconnected to server after " + attempt + " attempt(s)");
+                    return true;
+                }
+                PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Reconnect attempt " + attempt + " refused");
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            }
+            backoff = Math.min(backoff * 2, RECONNECT_BACKOFF_MAX);
+        }
+        if(this.go) {
+            this.go = false;
+            PlaceLogger.log(PlaceLogger.LogType.FATAL, this.getClass().getName(), PlaceLogger.getLineNumber(), "Lost connection to server, giving up");
+        }
+        return false;
+    }
+
+    /**
+     * Remember the sequence number of a change received from the server.
+     * @param tile the changed tile
+     */
+    private void seen(PlaceTile tile) {
+        this.lastSequence = Math.max(this.lastSequence, tile.getSequence());
+    }
+
     /**
      * Runs the client. Reads and handles messages
      * from the server.
@@ -99,25 +224,51 @@ public class NetworkClient extends Thread {
     public void run() {
         while (this.go) {
             try {
-                PlaceRequest<?> response = (PlaceRequest<?>) networkIn.readUnshared();
+                PlaceRequest<?> response = PlaceCodec.read(networkIn);
                 PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Server " + response.toString());
                 switch(response.getType()) {
                     case TILE_CHANGED:
                         PlaceTile tile = (PlaceTile) response.getData();
                         this.model.tileChanged(tile);
+                        seen(tile);
                         PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Updated: " + tile);
                         break;
+                    case TILES_CHANGED:
+                        for(PlaceTile changed : (PlaceTile[]) response.getData()) {
+                            this.model.tileChanged(changed);
+                            seen(changed);
+                        }
+                        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Updated " + ((PlaceTile[]) response.getData()).length + " tiles");
+                        break;
                     case READY:
                         this.ready = true;
                         break;
+                    case ERROR:
+                        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Server error: " + response.getData());
+                        break;
+                    case USERNAME:
+                        usernamesReceived((Map<?, ?>) response.getData());
+                        break;
+                    case HISTORY:
+                        historyReceived((PlaceTile[]) response.getData());
+                        break;
+                    case BOARD:
+                        PlaceBoard board = (PlaceBoard) response.getData();
+                        this.model.resync(board);
+                        this.lastSequence = Math.max(this.lastSequence, board.getSequence());
+                        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "PlaceBoard received from server and resynced");
+                        break;
                     default:
                         PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Unexpected type: " + response.getType());
                         break;
                 }
             } catch (IOException e) {
-                PlaceLogger.log(PlaceLogger.LogType.FATAL, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
-            } catch (ClassNotFoundException e) {
-                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+                if(this.go) {
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Lost connection to server, reconnecting: " + e.getMessage());
+                    if(!reconnect()) {
+                        break;
+                    }
+                }
             }
         }
     }
@@ -134,8 +285,7 @@ public class NetworkClient extends Thread {
                 try {
                     PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), "Sending: " + tile.getColor().getName() + " tile to (" + tile.getRow() + ", " + tile.getCol() + ")");
                     if(usingClientNumbers) { this.ready = false; }
-                    networkOut.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile));
-                    networkOut.flush();
+                    send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile));
                 } catch (IOException e) {
                     PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
                 }
@@ -147,6 +297,139 @@ public class NetworkClient extends Thread {
         } else { PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Failed to choose tile: on cool-down"); }
     }
 
+    /**
+     * Tell the server which part of the board is shown, so it only sends
+     * changes inside it. Tiles coming into view that changed while they were
+     * not shown are sent right away. The part is sent again after a
+     * reconnect.
+     * @param row the top row of the part
+     * @param col the left column of the part
+     * @param rows the height of the part
+     * @param cols the width of the part
+     */
+    public void subscribe(int row, int col, int rows, int cols) {
+        int[] shown = new int[] { row, col, rows, cols };
+        if(Arrays.equals(shown, this.region)) {
+            return;
+        }
+        this.region = shown;
+        try {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, shown));
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+        }
+    }
+
+    /**
+     * Look up the username with a user id. Tiles from the server only carry
+     * the id of their owner, so names are fetched from the server the first
+     * time they are needed and remembered afterwards.
+     * @param userId the user id
+     * @param callback called with the username once it is known, possibly
+     * right away and otherwise on the network thread
+     */
+    public void lookUpUsername(int userId, Consumer<String> callback) {
+        String name;
+        synchronized (this.usernames) {
+            name = this.usernames.get(userId);
+            if(name == null) {
+                List<Consumer<String>> waiting = this.lookups.get(userId);
+                if(waiting != null) {
+                    waiting.add(callback);
+                    return;
+                }
+                waiting = new ArrayList<>();
+                waiting.add(callback);
+                this.lookups.put(userId, waiting);
+            }
+        }
+        if(name != null) {
+            callback.accept(name);
+            return;
+        }
+        try {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.GET_USERNAME, userId));
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+        }
+    }
+
+    /**
+     * Look up the recent changes made to a tile. Histories change all the
+     * time, so they are fetched from the server every time.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @param callback called on the network thread with the changes, newest
+     * first, or just the tile as it is now if the server remembers none
+     */
+    public void lookUpHistory(int row, int col, Consumer<PlaceTile[]> callback) {
+        int index = row * this.model.getDim() + col;
+        synchronized (this.histories) {
+            List<Consumer<PlaceTile[]>> waiting = this.histories.get(index);
+            if(waiting != null) {
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(callback);
+            this.histories.put(index, waiting);
+        }
+        try {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.GET_HISTORY, new PlaceTile(row, col, null, PlaceColor.WHITE)));
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+        }
+    }
+
+    /**
+     * Hand a tile history sent by the server to whoever was waiting on it.
+     * @param changes the changes, newest first
+     */
+    private void historyReceived(PlaceTile[] changes) {
+        if(changes.length == 0) {
+            return;
+        }
+        List<Consumer<PlaceTile[]>> waiting;
+        synchronized (this.histories) {
+            waiting = this.histories.remove(changes[0].getRow() * this.model.getDim() + changes[0].getCol());
+        }
+        if(waiting != null) {
+            for(Consumer<PlaceTile[]> callback : waiting) {
+                callback.accept(changes);
+            }
+        }
+    }
+
+    /**
+     * Remember usernames sent by the server and hand them to whoever was
+     * waiting on them.
+     * @param received the usernames, by user id
+     */
+    private void usernamesReceived(Map<?, ?> received) {
+        for(Map.Entry<?, ?> entry : received.entrySet()) {
+            List<Consumer<String>> waiting;
+            synchronized (this.usernames) {
+                this.usernames.put((Integer) entry.getKey(), (String) entry.getValue());
+                waiting = this.lookups.remove(entry.getKey());
+            }
+            if(waiting != null) {
+                for(Consumer<String> callback : waiting) {
+                    callback.accept((String) entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a request to the server. Requests may be sent from more than
+     * one thread, so only one is written at a time.
+     * @param msg the request to send
+     * @throws IOException if a network error occurs
+     */
+    private synchronized void send(PlaceRequest<?> msg) throws IOException {
+        PlaceCodec.write(this.networkOut, msg);
+    }
+
     /**
      * Stop listening for server messages and close
      * down the client socket.
@@ -0,0 +1,620 @@
+package place.network;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Converts requests to and from the frames that are sent over the network.
+ * Every frame is a 4 byte length followed by that many bytes of payload, so
+ * the receiving side always knows where one request ends and the next one
+ * begins. This lets the blocking and the non-blocking servers speak the
+ * exact same protocol to every client.
+ *
+ * The payload starts with a single byte holding the request type, followed
+ * by the request data written field by field:
+ * <pre>
+ *     BOARD           int DIM, long sequence, byte flags, then the packed board (see writeBoard)
+ *     CHANGE_TILE     tile
+ *     ERROR           string
+ *     LOGIN           string
+ *     LOGIN_SUCCESS   int client number
+ *     TILE_CHANGED    tile
+ *     READY           nothing
+ *     TILES_CHANGED   int count, then that many tiles
+ *     RESUME          long sequence
+ *     GET_USERNAME    int user id
+ *     USERNAME        int count, then that many int user id, string username
+ *     GET_BOARD_AT    long time
+ *     BOARD_AT        same as BOARD
+ *     GET_HISTORY     tile
+ *     HISTORY         same as TILES_CHANGED
+ *     REPLICATE       long sequence, then string secret
+ *     FORWARD_TILE    tile, then string owner
+ *     SUBSCRIBE       int row, int col, int rows, int cols
+ *     GET_LEVEL       int level
+ *     LEVEL           same as BOARD
+ *     LEVEL_CHANGED   tile
+ *
+ *     tile            int row, int col, byte color, long time, long sequence, int owner id
+ *     string          unsigned short length, then that many UTF-8 bytes
+ * </pre>
+ *
+ * A server decodes what it reads with decodeFromClient, which refuses the
+ * types only a server sends before looking at their data, so a client can
+ * not make the server unpack a board.
+ *
+ * @author Jake Waclawski
+ */
+public class PlaceCodec {
+    /** the size of the length prefix in front of every frame, in bytes */
+    public static final int HEADER_SIZE = 4;
+    /** the largest payload that will be accepted from the network, in bytes */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /** the size of a tile: row, column, color, time, sequence and owner id */
+    private static final int TILE_SIZE = 4 + 4 + 1 + 8 + 8 + 4;
+    /** the request types, indexed by the type byte of a frame */
+    private static final PlaceRequest.RequestType[] TYPES = PlaceRequest.RequestType.values();
+    /** the place colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+    /** the largest board dimension whose tile count still fits in an int */
+    private static final int MAX_BOARD_DIM = 46340;
+    /** the most a Deflate stream can be inflated, in output bytes for every input byte */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    /** the size of a board's dimension, sequence number and flags */
+    private static final int BOARD_HEADER_SIZE = 4 + 8 + 1;
+    /** the request types a client may send to a server */
+    private static final EnumSet<PlaceRequest.RequestType> CLIENT_TYPES = EnumSet.of(
+            PlaceRequest.RequestType.LOGIN, PlaceRequest.RequestType.CHANGE_TILE, PlaceRequest.RequestType.RESUME,
+            PlaceRequest.RequestType.GET_USERNAME, PlaceRequest.RequestType.GET_BOARD_AT, PlaceRequest.RequestType.GET_HISTORY,
+            PlaceRequest.RequestType.REPLICATE, PlaceRequest.RequestType.FORWARD_TILE, PlaceRequest.RequestType.SUBSCRIBE,
+            PlaceRequest.RequestType.GET_LEVEL);
+    /** the board flag marking a Deflate compressed board */
+    private static final int BOARD_DEFLATED = 1;
+    /** the size of the buffers used while packing and unpacking a board */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** whether boards are Deflate compressed before they are sent */
+    private static volatile boolean deflateBoards = true;
+
+    /**
+     * Encode a request into a complete frame, length prefix included.
+     * @param msg the request to encode
+     * @return the frame
+     */
+    public static byte[] encode(PlaceRequest<?> msg) {
+        ByteBuffer frame;
+        switch (msg.getType()) {
+            case BOARD:
+            case BOARD_AT:
+            case LEVEL:
+                return encodeBoard(msg.getType(), (PlaceBoard) msg.getData());
+            case CHANGE_TILE:
+            case TILE_CHANGED:
+            case GET_HISTORY:
+            case LEVEL_CHANGED:
+                frame = allocate(msg.getType(), TILE_SIZE);
+                putTile(frame, (PlaceTile) msg.getData());
+                break;
+            case FORWARD_TILE:
+                byte[] owner = toBytes(((PlaceTile) msg.getData()).getOwner());
+                frame = allocate(msg.getType(), TILE_SIZE + 2 + owner.length);
+                putTile(frame, (PlaceTile) msg.getData());
+                putString(frame, owner);
+                break;
+            case TILES_CHANGED:
+            case HISTORY:
+                frame = encodeTiles(msg.getType(), (PlaceTile[]) msg.getData());
+                break;
+            case ERROR:
+            case LOGIN:
+                byte[] text = toBytes(String.valueOf(msg.getData()));
+                frame = allocate(msg.getType(), 2 + text.length);
+                putString(frame, text);
+                break;
+            case LOGIN_SUCCESS:
+                frame = allocate(msg.getType(), 4);
+                frame.putInt((Integer) msg.getData());
+                break;
+            case RESUME:
+            case GET_BOARD_AT:
+                frame = allocate(msg.getType(), 8);
+                frame.putLong((Long) msg.getData());
+                break;
+            case REPLICATE:
+                Object[] join = (Object[]) msg.getData();
+                byte[] secret = toBytes(String.valueOf(join[1]));
+                frame = allocate(msg.getType(), 8 + 2 + secret.length);
+                frame.putLong((Long) join[0]);
+                putString(frame, secret);
+                break;
+            case GET_USERNAME:
+            case GET_LEVEL:
+                frame = allocate(msg.getType(), 4);
+                frame.putInt((Integer) msg.getData());
+                break;
+            case SUBSCRIBE:
+                int[] region = (int[]) msg.getData();
+                frame = allocate(msg.getType(), 4 * 4);
+                for(int i = 0; i < 4; i++) {
+                    frame.putInt(region[i]);
+                }
+                break;
+            case USERNAME:
+                frame = encodeUsernames((Map<?, ?>) msg.getData());
+                break;
+            default:
+                frame = allocate(msg.getType(), 0);
+                break;
+        }
+        return frame.array();
+    }
+
+    /**
+     * Turn Deflate compression of sent boards on or off. Boards are always
+     * decoded either way.
+     * @param deflate whether to compress boards
+     */
+    public static void setBoardCompression(boolean deflate) {
+        deflateBoards = deflate;
+    }
+
+    /**
+     * Decode the payload of a frame back into a request.
+     * @param payload the buffer holding the payload
+     * @param offset where the payload starts in the buffer
+     * @param length the length of the payload
+     * @return the request
+     * @throws IOException if the payload is malformed
+     */
+    public static PlaceRequest<?> decode(byte[] payload, int offset, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload, offset, length);
+        try {
+            int type = in.get();
+            if(type < 0 || type >= TYPES.length) {
+                throw new IOException("Invalid request type: " + type);
+            }
+            switch (TYPES[type]) {
+                case BOARD:
+                case BOARD_AT:
+                case LEVEL:
+                    return new PlaceRequest<>(TYPES[type], decodeBoard(in));
+                case CHANGE_TILE:
+                case TILE_CHANGED:
+                case GET_HISTORY:
+                case LEVEL_CHANGED:
+                    return new PlaceRequest<>(TYPES[type], getTile(in));
+                case FORWARD_TILE:
+                    PlaceTile tile = getTile(in);
+                    tile.setOwner(getString(in));
+                    return new PlaceRequest<>(TYPES[type], tile);
+                case TILES_CHANGED:
+                case HISTORY:
+                    return new PlaceRequest<>(TYPES[type], decodeTiles(in));
+                case ERROR:
+                case LOGIN:
+                    return new PlaceRequest<>(TYPES[type], getString(in));
+                case LOGIN_SUCCESS:
+                    return new PlaceRequest<>(TYPES[type], in.getInt());
+                case RESUME:
+                case GET_BOARD_AT:
+                    return new PlaceRequest<>(TYPES[type], in.getLong());
+                case REPLICATE:
+                    long from = in.getLong();
+                    return new PlaceRequest<>(TYPES[type], new Object[] { from, getString(in) });
+                case GET_USERNAME:
+                case GET_LEVEL:
+                    return new PlaceRequest<>(TYPES[type], in.getInt());
+                case SUBSCRIBE:
+                    return new PlaceRequest<>(TYPES[type], new int[] { in.getInt(), in.getInt(), in.getInt(), in.getInt() });
+                case USERNAME:
+                    return new PlaceRequest<>(TYPES[type], decodeUsernames(in));
+                default:
+                    return new PlaceRequest<>(TYPES[type], null);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    /**
+     * Decode the payload of a frame a client sent to the server. Types only a
+     * server sends are refused before any of their data is read.
+     * @param payload the buffer holding the payload
+     * @param offset where the payload starts in the buffer
+     * @param length the length of the payload
+     * @return the request
+     * @throws IOException if the payload is malformed, or not of a type a
+     * client sends
+     */
+    public static PlaceRequest<?> decodeFromClient(byte[] payload, int offset, int length) throws IOException {
+        int type = length > 0 ? payload[offset] : -1;
+        if(type < 0 || type >= TYPES.length || !CLIENT_TYPES.contains(TYPES[type])) {
+            throw new IOException("Invalid request type from a client: " + type);
+        }
+        return decode(payload, offset, length);
+    }
+
+    /**
+     * Write a request to a blocking stream as a single frame.
+     * @param out the stream to write to
+     * @param msg the request to send
+     * @throws IOException if a network error occurs
+     */
+    public static void write(OutputStream out, PlaceRequest<?> msg) throws IOException {
+        out.write(encode(msg));
+        out.flush();
+    }
+
+    /**
+     * Read a single frame from a blocking stream and decode it.
+     * @param in the stream to read from
+     * @return the request
+     * @throws IOException if a network error occurs or the frame is malformed
+     */
+    public static PlaceRequest<?> read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload, 0, length);
+    }
+
+    /**
+     * Make sure a frame length read from the network is sane.
+     * @param length the length of the payload
+     * @throws IOException if the length is negative or too large
+     */
+    public static void checkLength(int length) throws IOException {
+        if(length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Allocate a frame and fill in its length prefix and type.
+     * @param type the request type
+     * @param dataSize the size of the request data, in bytes
+     * @return the frame, positioned where the request data goes
+     */
+    private static ByteBuffer allocate(PlaceRequest.RequestType type, int dataSize) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + 1 + dataSize);
+        frame.putInt(1 + dataSize);
+        frame.put((byte) type.ordinal());
+        return frame;
+    }
+
+    /**
+     * Encode the whole board as a BOARD or BOARD_AT frame (see writeBoard).
+     * @param type the request type
+     * @param board the board
+     * @return the frame
+     */
+    private static byte[] encodeBoard(PlaceRequest.RequestType type, PlaceBoard board) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(0);
+            header.writeByte(type.ordinal());
+            writeBoard(bytes, board, deflateBoards);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(frame.length - HEADER_SIZE);
+        return frame;
+    }
+
+    /**
+     * Decode the board in a BOARD frame.
+     * @param in the payload, positioned at the board
+     * @return the board
+     * @throws IOException if the payload is malformed
+     */
+    private static PlaceBoard decodeBoard(ByteBuffer in) throws IOException {
+        if(in.remaining() < BOARD_HEADER_SIZE) {
+            throw new IOException("Truncated board");
+        }
+        int dim = in.getInt(in.position());
+        int flags = in.get(in.position() + BOARD_HEADER_SIZE - 1);
+        if(dim < 0 || dim > MAX_BOARD_DIM) {
+            throw new IOException("Invalid board dimension: " + dim);
+        }
+        // the colors alone take half a byte a tile, so a frame too short for them is refused before the board is allocated
+        long smallest = ((long) dim * dim + 1) / 2 + 4;
+        if((flags & BOARD_DEFLATED) != 0) {
+            smallest = (smallest + MAX_DEFLATE_RATIO - 1) / MAX_DEFLATE_RATIO;
+        }
+        if(in.remaining() - BOARD_HEADER_SIZE < smallest) {
+            throw new IOException("Board of dimension " + dim + " does not fit in a frame of " + in.remaining() + " byte(s)");
+        }
+        return readBoard(new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), in.remaining()), null);
+    }
+
+    /**
+     * Write the whole board as a packed snapshot. The board dimension,
+     * sequence number and flags come first. Then come the colors, two to a
+     * byte, followed by the index, time and owner id of every tile that has
+     * been changed, ending with an index of -1. Untouched tiles have no owner
+     * or time, so they cost half a byte each. Everything after the flags may
+     * be Deflate compressed.
+     *
+     * The sequence number is read before any tile, so the snapshot holds at
+     * least every change up to it, even if the board is changed while it is
+     * being written.
+     * @param out the stream to write to, it is not closed
+     * @param board the board
+     * @param deflate whether to compress the snapshot
+     * @throws IOException if the snapshot could not be written
+     */
+    public static void writeBoard(OutputStream out, PlaceBoard board, boolean deflate) throws IOException {
+        Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(board.DIM);
+            header.writeLong(board.getSequence());
+            header.writeByte(deflater != null ? BOARD_DEFLATED : 0);
+
+            DeflaterOutputStream deflated = deflater != null ? new DeflaterOutputStream(out, deflater, BUFFER_SIZE) : null;
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(deflated != null ? deflated : out, BUFFER_SIZE));
+            int cells = board.DIM * board.DIM;
+            for(int i = 0; i < cells; i += 2) {
+                int high = board.getColor(i / board.DIM, i % board.DIM).getNumber();
+                int low = i + 1 < cells ? board.getColor((i + 1) / board.DIM, (i + 1) % board.DIM).getNumber() : 0;
+                data.writeByte(high << 4 | low);
+            }
+            for(int i = 0; i < cells; i++) {
+                long time = board.getTime(i / board.DIM, i % board.DIM);
+                if(time != 0) {
+                    data.writeInt(i);
+                    data.writeLong(time);
+                    data.writeInt(board.getOwnerId(i / board.DIM, i % board.DIM));
+                }
+            }
+            data.writeInt(-1);
+            data.flush();
+            if(deflated != null) {
+                deflated.finish();
+            }
+        } finally {
+            if(deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Read a packed board snapshot written by writeBoard. The snapshot is
+     * inflated and unpacked a buffer at a time straight into the board.
+     * @param in the stream to read from
+     * @param board the board to read into, null to create a new one
+     * @return the board
+     * @throws IOException if the snapshot is malformed, or is of a board with
+     * another dimension
+     */
+    public static PlaceBoard readBoard(InputStream in, PlaceBoard board) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        int dim = header.readInt();
+        long sequence = header.readLong();
+        int flags = header.readByte();
+        if(dim < 0 || dim > MAX_BOARD_DIM) {
+            throw new IOException("Invalid board dimension: " + dim);
+        }
+        if(board != null && board.DIM != dim) {
+            throw new IOException("Snapshot of a board of dimension " + dim + ", not " + board.DIM);
+        }
+        InputStream body = in;
+        Inflater inflater = null;
+        if((flags & BOARD_DEFLATED) != 0) {
+            inflater = new Inflater();
+            body = new InflaterInputStream(body, inflater, BUFFER_SIZE);
+        }
+        try {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(body, BUFFER_SIZE));
+            if(board == null) {
+                board = new PlaceBoard(dim);
+            }
+            int cells = dim * dim;
+            for(int i = 0; i < cells; i += 2) {
+                int packed = data.readUnsignedByte();
+                board.setColor(i / dim, i % dim, COLORS[packed >>> 4]);
+                if(i + 1 < cells) {
+                    board.setColor((i + 1) / dim, (i + 1) % dim, COLORS[packed & 0xF]);
+                }
+            }
+            int index;
+            while((index = data.readInt()) >= 0) {
+                if(index >= cells) {
+                    throw new IOException("Invalid tile index: " + index);
+                }
+                board.setTime(index / dim, index % dim, data.readLong());
+                board.setOwnerId(index / dim, index % dim, data.readInt());
+            }
+            board.setSequence(sequence);
+            return board;
+        } finally {
+            if(inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Encode a batch of tiles.
+     * @param type the request type
+     * @param tiles the tiles
+     * @return the frame
+     */
+    private static ByteBuffer encodeTiles(PlaceRequest.RequestType type, PlaceTile[] tiles) {
+        ByteBuffer frame = allocate(type, 4 + tiles.length * TILE_SIZE);
+        frame.putInt(tiles.length);
+        for(PlaceTile tile : tiles) {
+            putTile(frame, tile);
+        }
+        return frame;
+    }
+
+    /**
+     * Decode a batch of tile changes.
+     * @param in the payload, positioned at the batch
+     * @return the changed tiles
+     * @throws IOException if the payload is malformed
+     */
+    private static PlaceTile[] decodeTiles(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if(count < 0 || (long) count * TILE_SIZE > in.remaining()) {
+            throw new IOException("Invalid tile count: " + count);
+        }
+        PlaceTile[] tiles = new PlaceTile[count];
+        for(int i = 0; i < count; i++) {
+            tiles[i] = getTile(in);
+        }
+        return tiles;
+    }
+
+    /**
+     * Encode a map of user ids to usernames.
+     * @param usernames the usernames, by user id
+     * @return the frame
+     */
+    private static ByteBuffer encodeUsernames(Map<?, ?> usernames) {
+        byte[][] names = new byte[usernames.size()][];
+        int[] ids = new int[usernames.size()];
+        int size = 4;
+        int i = 0;
+        for(Map.Entry<?, ?> entry : usernames.entrySet()) {
+            ids[i] = (Integer) entry.getKey();
+            names[i] = toBytes((String) entry.getValue());
+            size += 4 + 2 + names[i].length;
+            i++;
+        }
+        ByteBuffer frame = allocate(PlaceRequest.RequestType.USERNAME, size);
+        frame.putInt(ids.length);
+        for(i = 0; i < ids.length; i++) {
+            frame.putInt(ids[i]);
+            putString(frame, names[i]);
+        }
+        return frame;
+    }
+
+    /**
+     * Decode a map of user ids to usernames.
+     * @param in the payload, positioned at the map
+     * @return the usernames, by user id
+     * @throws IOException if the payload is malformed
+     */
+    private static HashMap<Integer, String> decodeUsernames(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if(count < 0 || (long) count * (4 + 2) > in.remaining()) {
+            throw new IOException("Invalid username count: " + count);
+        }
+        HashMap<Integer, String> usernames = new HashMap<>();
+        for(int i = 0; i < count; i++) {
+            usernames.put(in.getInt(), getString(in));
+        }
+        return usernames;
+    }
+
+    /**
+     * Write a tile.
+     * @param out the frame to write to
+     * @param tile the tile
+     */
+    private static void putTile(ByteBuffer out, PlaceTile tile) {
+        out.putInt(tile.getRow());
+        out.putInt(tile.getCol());
+        out.put((byte) tile.getColor().getNumber());
+        out.putLong(tile.getTime());
+        out.putLong(tile.getSequence());
+        out.putInt(tile.getOwnerId());
+    }
+
+    /**
+     * Read a tile.
+     * @param in the payload, positioned at the tile
+     * @return the tile
+     * @throws IOException if the payload is malformed
+     */
+    private static PlaceTile getTile(ByteBuffer in) throws IOException {
+        int row = in.getInt();
+        int col = in.getInt();
+        PlaceColor color = getColor(in);
+        long time = in.getLong();
+        PlaceTile tile = new PlaceTile(row, col, null, color, time);
+        tile.setSequence(in.getLong());
+        tile.setOwnerId(in.getInt());
+        return tile;
+    }
+
+    /**
+     * Read a color number.
+     * @param in the payload, positioned at the color
+     * @return the color
+     * @throws IOException if the color number is invalid
+     */
+    private static PlaceColor getColor(ByteBuffer in) throws IOException {
+        int number = in.get();
+        if(number < 0 || number >= COLORS.length) {
+            throw new IOException("Invalid color number: " + number);
+        }
+        return COLORS[number];
+    }
+
+    /**
+     * Encode a string as UTF-8. A null string is sent as an empty one.
+     * @param text the string
+     * @return the encoded string
+     */
+    private static byte[] toBytes(String text) {
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long to send: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Write an encoded string with its length in front of it.
+     * @param out the frame to write to
+     * @param bytes the encoded string
+     */
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    /**
+     * Read a string.
+     * @param in the payload, positioned at the string
+     * @return the string
+     */
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if(length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+}
@@ -5,7 +5,7 @@ import java.io.Serializable;
 /**
  * This is the class that represents the requests that are transmitted between
  * the server and clients.  These objects will be sent and received using
- * PlaceExchange.
+ * PlaceCodec.
  *
  * @param <E> the data type (depends on the request type):<br>
  *      BOARD: PlaceBoard object<br>
@@ -14,6 +14,20 @@ import java.io.Serializable;
  *      LOGIN: String<br>
  *      LOGIN_SUCCESS: String<br>
  *      TILE_CHANGED: PlaceTile object<br>
+ *      TILES_CHANGED: PlaceTile array<br>
+ *      RESUME: Long<br>
+ *      GET_USERNAME: Integer<br>
+ *      USERNAME: HashMap of user id to username<br>
+ *      GET_BOARD_AT: Long<br>
+ *      BOARD_AT: PlaceBoard object<br>
+ *      GET_HISTORY: PlaceTile object<br>
+ *      HISTORY: PlaceTile array<br>
+ *      REPLICATE: Object array of the Long sequence and the String secret<br>
+ *      FORWARD_TILE: PlaceTile object<br>
+ *      SUBSCRIBE: int array<br>
+ *      GET_LEVEL: Integer<br>
+ *      LEVEL: PlaceBoard object<br>
+ *      LEVEL_CHANGED: PlaceTile object<br>
  *
  * @author Sean Strout @ RIT CS
  */
@@ -22,7 +36,8 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
         /**
          * After a successful client login, the server will send the current
          * Board to the client.  This is only sent once - afterwards the
-         * only information transmitted are the tile changes.
+         * only information transmitted are the tile changes.  The Board
+         * carries the sequence number of the last change made to it.
          */
         BOARD,
 
@@ -67,7 +82,124 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
          * Used to by the server to indicate that the client is ready to
          * place another tile
          */
-        READY
+        READY,
+
+        /**
+         * Used by the server to send many tile changes at once when it
+         * batches changes into broadcast ticks.  It will contain an array
+         * of the changed Tile objects, which the clients should apply in
+         * order as if each had arrived in its own TILE_CHANGED.
+         */
+        TILES_CHANGED,
+
+        /**
+         * Sent by a reconnecting client just before its LOGIN.  It will
+         * contain the sequence number of the last change the client saw.
+         * If the server still remembers every change made since then, the
+         * login is followed by a TILES_CHANGED holding just those changes
+         * instead of the whole Board.
+         */
+        RESUME,
+
+        /**
+         * Tiles only carry the id the server gave their owner's username.
+         * A client that wants to show a name sends this request with the
+         * owner id, and the server answers with a USERNAME.
+         */
+        GET_USERNAME,
+
+        /**
+         * Used by the server to answer a GET_USERNAME.  It will contain a
+         * map from user ids to their usernames.
+         */
+        USERNAME,
+
+        /**
+         * Asks the server for the Board as it was at a past time, for
+         * moderation and timelapse tools.  It will contain the time in
+         * milliseconds since the epoch, and the server answers with a
+         * BOARD_AT, or an ERROR if it no longer keeps history that old.
+         */
+        GET_BOARD_AT,
+
+        /**
+         * Used by the server to answer a GET_BOARD_AT.  It will contain the
+         * Board as it was at that time, carrying the sequence number of the
+         * last change made before it.
+         */
+        BOARD_AT,
+
+        /**
+         * Asks the server for the recent changes made to a tile.  It will
+         * contain a Tile object of which only the row and column are used,
+         * and the server answers with a HISTORY.
+         */
+        GET_HISTORY,
+
+        /**
+         * Used by the server to answer a GET_HISTORY.  It will contain an
+         * array of the tile's most recent changes, newest first, each
+         * carrying its color, owner id and time.  If the server remembers
+         * none, it holds just the tile as it is now.
+         */
+        HISTORY,
+
+        /**
+         * Sent by a server joining a cluster to its leader instead of a
+         * LOGIN.  It will contain the sequence number of the last change the
+         * joining server holds, or -1 if it holds none, and the cluster's
+         * shared secret.  A wrong secret is answered with an ERROR and the
+         * connection is closed.  Otherwise the leader answers
+         * like it would a reconnecting client, with the missed changes or the
+         * whole Board, after a USERNAME holding every known username.  From
+         * then on it sends the joining server every change, each in its own
+         * TILE_CHANGED, and a USERNAME for every new username.
+         */
+        REPLICATE,
+
+        /**
+         * Used by a server in a cluster to pass a change one of its clients
+         * made on to the leader.  It will contain the Tile object, carrying
+         * the owner's username since user ids are handed out by the leader.
+         * The change comes back to every server as a TILE_CHANGED once the
+         * leader has accepted it.
+         */
+        FORWARD_TILE,
+
+        /**
+         * Sent by a logged in client that only shows part of the board, for
+         * example because it is zoomed in.  It will contain the top row, left
+         * column, height and width of that part, and from then on the server
+         * only sends the client changes inside it.  Tiles that come into the
+         * part and changed while the client was not watching them are sent
+         * right away in a TILES_CHANGED.  A part covering the whole board
+         * goes back to receiving every change.
+         */
+        SUBSCRIBE,
+
+        /**
+         * Sent by a logged in client zoomed too far out to show every tile.
+         * It will contain a level of detail: at level 1 every cell stands for
+         * 2x2 tiles, at level 2 for 4x4 tiles and so on, colored with the
+         * most common color among them.  The server answers with a LEVEL and
+         * then sends LEVEL_CHANGED instead of tile changes, until the client
+         * goes back to full detail with a SUBSCRIBE.
+         */
+        GET_LEVEL,
+
+        /**
+         * Used by the server to answer a GET_LEVEL.  It will contain the level
+         * as a Board of its own, as many cells wide as the level has, only
+         * holding their colors.
+         */
+        LEVEL,
+
+        /**
+         * Used by the server to tell a client watching a level of detail
+         * that one of its cells changed color.  It will contain a Tile object
+         * with the row and column of the cell in the level and its new color.
+         */
+        LEVEL_CHANGED
     }
 
     /** The request type */
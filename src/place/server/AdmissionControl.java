@@ -0,0 +1,106 @@
+package place.server;
+
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the server takes on a newly accepted connection. It counts
+ * the open connections and the ones that have not logged in yet, and a
+ * connection beyond either limit is refused straight away, so a storm of
+ * logins is turned back at the door instead of piling up threads and buffers
+ * the server can not keep up with.
+ *
+ * A connection is admitted once it logs in, or joins as a cluster server,
+ * and then no longer counts as waiting. Connections that never get that far
+ * are closed by the server after the login timeout.
+ *
+ * @author Jake Waclawski
+ */
+class AdmissionControl {
+    /** the frame sent to a refused connection before it is closed */
+    static final byte[] BUSY = PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Server busy, try again later"));
+
+    /** the most connections open at once, 0 for no limit */
+    private int maxConnections;
+    /** the most connections waiting to log in at once, 0 for no limit */
+    private int maxPending;
+    /** the number of open connections */
+    private AtomicInteger connections;
+    /** the number of open connections that have not logged in yet */
+    private AtomicInteger pending;
+    /** the number of connections refused */
+    private AtomicLong refused;
+
+    /**
+     * Create the admission control of a server nobody is connected to yet.
+     * @param maxConnections the most connections open at once, 0 for no limit
+     * @param maxPending the most connections waiting to log in at once, 0 for
+     * no limit
+     */
+    AdmissionControl(int maxConnections, int maxPending) {
+        this.maxConnections = maxConnections;
+        this.maxPending = maxPending;
+        this.connections = new AtomicInteger();
+        this.pending = new AtomicInteger();
+        this.refused = new AtomicLong();
+    }
+
+    /**
+     * Count a newly accepted connection, unless that would take the server
+     * over one of its limits.
+     * @return true if the connection may stay open, false if it should be
+     * sent {@link #BUSY} and closed
+     */
+    boolean tryOpen() {
+        int open = this.connections.incrementAndGet();
+        int waiting = this.pending.incrementAndGet();
+        if((this.maxConnections > 0 && open > this.maxConnections) || (this.maxPending > 0 && waiting > this.maxPending)) {
+            this.connections.decrementAndGet();
+            this.pending.decrementAndGet();
+            this.refused.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop counting a connection as waiting to log in. Does nothing if it was
+     * already admitted.
+     * @param client the connection
+     */
+    void admitted(ClientConnection client) {
+        if(client.admit()) {
+            this.pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stop counting a connection that was closed.
+     * @param client the connection
+     */
+    void closed(ClientConnection client) {
+        admitted(client);
+        this.connections.decrementAndGet();
+    }
+
+    /**
+     * Get the number of open connections.
+     * @return the number of connections
+     */
+    int getConnections() { return this.connections.get(); }
+
+    /**
+     * Get the number of open connections that have not logged in yet.
+     * @return the number of connections
+     */
+    int getPendingLogins() { return this.pending.get(); }
+
+    /**
+     * Get the number of connections refused because the server was full.
+     * @return the number of connections
+     */
+    long getRefused() { return this.refused.get(); }
+}
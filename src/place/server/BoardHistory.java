@@ -0,0 +1,234 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceException;
+import place.PlaceLogger;
+import place.PlaceTile;
+import place.network.PlaceCodec;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * Keeps the board snapshots in the journal directory as keyframes and uses
+ * them to rebuild the board as it was at any time still covered by the
+ * journal. A query loads the nearest keyframe before the time and replays
+ * only the journal between the two, so it never has to go through the
+ * whole history.
+ *
+ * Snapshots are taken while the board keeps changing, so each keyframe is
+ * named after the sequence number the snapshot started at and the one it
+ * ended at. It holds every change up to the first and perhaps some up to the
+ * second, which is why only a keyframe that ended before the time asked for
+ * may be used. The newest keyframes are kept and the journal is truncated to
+ * the oldest one kept.
+ *
+ * @author Jake Waclawski
+ */
+class BoardHistory {
+    /** the start of every keyframe file name */
+    private static final String KEYFRAME_PREFIX = "snapshot-";
+    /** the end of every keyframe file name */
+    private static final String KEYFRAME_SUFFIX = ".board";
+
+    /** the directory the keyframes are kept in */
+    private Path directory;
+    /** the square dimension of the board */
+    private int dim;
+    /** the journal */
+    private Journal journal;
+    /** the number of keyframes kept */
+    private int keep;
+
+    /**
+     * Create the history kept in a journal directory.
+     * @param directory the directory the keyframes are kept in
+     * @param dim the square dimension of the board
+     * @param journal the journal
+     * @param keep the number of keyframes kept
+     */
+    BoardHistory(Path directory, int dim, Journal journal, int keep) {
+        this.directory = directory;
+        this.dim = dim;
+        this.journal = journal;
+        this.keep = Math.max(1, keep);
+    }
+
+    /**
+     * Add a new keyframe, then delete the oldest keyframes beyond the number
+     * kept and the journal segments only they needed.
+     * @param snapshot the finished snapshot, it is moved into place
+     * @param start the sequence number the snapshot started at
+     * @param end the sequence number the snapshot ended at
+     * @return the number of journal segments deleted
+     * @throws IOException if the keyframe could not be added
+     */
+    synchronized int add(Path snapshot, long start, long end) throws IOException {
+        Files.move(snapshot, keyframePath(this.directory, start, end), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        ArrayList<long[]> keyframes = list(this.directory);
+        while(keyframes.size() > this.keep) {
+            long[] oldest = keyframes.remove(0);
+            Files.delete(keyframePath(this.directory, oldest[0], oldest[1]));
+        }
+        return this.journal.truncate(keyframes.get(0)[0]);
+    }
+
+    /**
+     * Check whether there are any keyframes yet.
+     * @return whether there are none
+     * @throws IOException if the directory could not be listed
+     */
+    synchronized boolean isEmpty() throws IOException {
+        return list(this.directory).isEmpty();
+    }
+
+    /**
+     * Rebuild the whole board as it was at a time.
+     * @param time the time, in milliseconds since the epoch
+     * @return the board, holding every change made up to the time
+     * @throws PlaceException if the history no longer goes back that far
+     * @throws IOException if a keyframe or the journal could not be read
+     */
+    PlaceBoard boardAt(long time) throws PlaceException, IOException {
+        return rebuild(time, 0, 0, this.dim, this.dim);
+    }
+
+    /**
+     * Rebuild a rectangle of the board as it was at a time.
+     * @param time the time, in milliseconds since the epoch
+     * @param row the top row of the rectangle
+     * @param col the left column of the rectangle
+     * @param rows the height of the rectangle
+     * @param cols the width of the rectangle
+     * @return the tiles in the rectangle, indexed by row and then column
+     * relative to its corner
+     * @throws PlaceException if the rectangle is not on the board, or the
+     * history no longer goes back that far
+     * @throws IOException if a keyframe or the journal could not be read
+     */
+    PlaceTile[][] regionAt(long time, int row, int col, int rows, int cols) throws PlaceException, IOException {
+        if(row < 0 || col < 0 || rows < 0 || cols < 0 || row + rows > this.dim || col + cols > this.dim) {
+            throw new PlaceException("Invalid region");
+        }
+        PlaceBoard board = rebuild(time, row, col, rows, cols);
+        PlaceTile[][] region = new PlaceTile[rows][cols];
+        for(int r = 0; r < rows; r++) {
+            for(int c = 0; c < cols; c++) {
+                region[r][c] = board.getTile(row + r, col + c);
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Rebuild the board as it was at a time, from the latest keyframe that
+     * ended before it. Only changes inside the given rectangle are replayed.
+     * @param time the time, in milliseconds since the epoch
+     * @param row the top row of the rectangle
+     * @param col the left column of the rectangle
+     * @param rows the height of the rectangle
+     * @param cols the width of the rectangle
+     * @return the board
+     * @throws PlaceException if the history no longer goes back that far
+     * @throws IOException if a keyframe or the journal could not be read
+     */
+    private synchronized PlaceBoard rebuild(long time, int row, int col, int rows, int cols) throws PlaceException, IOException {
+        long start = System.nanoTime();
+        long sequence = this.journal.sequenceAt(time);
+        if(sequence == this.journal.getWrittenSequence() && this.journal.getLastSequence() > sequence) {
+            // the time may be after changes still waiting for the journal thread, which have to be in the segments before they are searched
+            this.journal.commitWaiting();
+            sequence = this.journal.sequenceAt(time);
+        }
+        long[] keyframe = null;
+        for(long[] candidate : list(this.directory)) {
+            if(candidate[1] <= sequence) {
+                keyframe = candidate;
+            }
+        }
+        if(sequence == 0 || keyframe == null) {
+            throw new PlaceException("The history does not go back to " + time);
+        }
+
+        PlaceBoard board;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(keyframePath(this.directory, keyframe[0], keyframe[1])))) {
+            board = PlaceCodec.readBoard(in, null);
+        }
+        long[] replayed = new long[1];
+        this.journal.replay(keyframe[0] + 1, sequence, tile -> {
+            if(tile.getRow() >= row && tile.getRow() < row + rows && tile.getCol() >= col && tile.getCol() < col + cols) {
+                board.setTile(tile);
+                replayed[0]++;
+            }
+        });
+        board.setSequence(sequence);
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, BoardHistory.class.getName(), "Rebuilt the board at change " + sequence + " from keyframe " + keyframe[0] + " and " + replayed[0] + " change(s) in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return board;
+    }
+
+    /**
+     * Load the latest keyframe in a directory into a board, if it is newer
+     * than the board. A keyframe that can not be read is skipped in favour of
+     * the one before it.
+     * @param directory the directory the keyframes are kept in
+     * @param board the board
+     * @return whether a keyframe was loaded
+     * @throws IOException if the directory could not be listed
+     */
+    static boolean load(Path directory, PlaceBoard board) throws IOException {
+        ArrayList<long[]> keyframes = list(directory);
+        for(int i = keyframes.size() - 1; i >= 0 && keyframes.get(i)[0] > board.getSequence(); i--) {
+            Path keyframe = keyframePath(directory, keyframes.get(i)[0], keyframes.get(i)[1]);
+            long start = System.nanoTime();
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(keyframe))) {
+                PlaceCodec.readBoard(in, board);
+                PlaceLogger.log(PlaceLogger.LogType.INFO, BoardHistory.class.getName(), "Loaded snapshot " + keyframe.getFileName() + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+                return true;
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, BoardHistory.class.getName(), "Skipping snapshot " + keyframe.getFileName() + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the keyframes in a directory.
+     * @param directory the directory the keyframes are kept in
+     * @return the sequence numbers each keyframe started and ended at,
+     * oldest first
+     * @throws IOException if the directory could not be listed
+     */
+    private static ArrayList<long[]> list(Path directory) throws IOException {
+        ArrayList<long[]> keyframes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, KEYFRAME_PREFIX + "*" + KEYFRAME_SUFFIX)) {
+            for(Path keyframe : files) {
+                String name = keyframe.getFileName().toString();
+                String[] numbers = name.substring(KEYFRAME_PREFIX.length(), name.length() - KEYFRAME_SUFFIX.length()).split("-");
+                try {
+                    keyframes.add(new long[] { Long.parseLong(numbers[0]), Long.parseLong(numbers[numbers.length - 1]) });
+                } catch (NumberFormatException e) {
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, BoardHistory.class.getName(), "Ignoring " + keyframe + ", not a snapshot");
+                }
+            }
+        }
+        keyframes.sort((a, b) -> Long.compare(a[0], b[0]));
+        return keyframes;
+    }
+
+    /**
+     * Get the path of a keyframe.
+     * @param directory the directory the keyframes are kept in
+     * @param start the sequence number the snapshot started at
+     * @param end the sequence number the snapshot ended at
+     * @return the path
+     */
+    private static Path keyframePath(Path directory, long start, long end) {
+        return directory.resolve(String.format("%s%020d-%020d%s", KEYFRAME_PREFIX, start, end, KEYFRAME_SUFFIX));
+    }
+}
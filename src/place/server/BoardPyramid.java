@@ -0,0 +1,264 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps lower levels of detail of the board for clients that are zoomed far
+ * out. Level 1 has one cell for every 2x2 tiles, level 2 one for every 4x4
+ * tiles and so on, each cell holding the color most common among the four
+ * cells below it. Ties go to the first of them, so a level only depends on
+ * the board and not on the order the tiles were changed in.
+ *
+ * A tile change only recomputes the one cell above it on every level, and
+ * clients watching a level are sent the cells whose color changed.
+ *
+ * The lower levels, whose cells each lie inside one lock chunk of the board,
+ * are updated under the lock stripe of the changed tile, which the server
+ * already holds. Only a change that reaches the levels above them takes the
+ * pyramid's own lock, and few do, since a change stops at the first level
+ * whose color stays the same. Rebuilding the pyramid holds every lock
+ * stripe as well. So does copying a level for a client about to watch it,
+ * but only long enough to copy its cells; the copy is turned into a board
+ * and encoded once the locks are let go. When the client is added as a
+ * watcher, it is sent the cells that changed since the copy was taken.
+ *
+ * @author Jake Waclawski
+ */
+class BoardPyramid {
+    /** the place colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** the board */
+    private PlaceBoard board;
+    /** the side of each level, level 0 is the board itself */
+    private int[] sides;
+    /** the color number of every cell on each level, by row and then column, null for level 0 */
+    private byte[][] colors;
+    /** the clients watching each level, null for level 0 */
+    private Set<ClientConnection>[] watchers;
+    /** the number of levels updated under the lock stripe of the changed tile */
+    private int stripedLevels;
+
+    /**
+     * Create the levels of detail of a board.
+     * @param board the board
+     * @param levels the number of levels below the board, fewer if the top
+     * level would be less than a cell wide
+     * @param stripedLevels the number of levels whose cells each lie inside
+     * one lock chunk of the board
+     */
+    @SuppressWarnings("unchecked")
+    BoardPyramid(PlaceBoard board, int levels, int stripedLevels) {
+        this.board = board;
+        this.stripedLevels = stripedLevels;
+        int count = 0;
+        for(int side = board.DIM; side > 1 && count < levels; side = (side + 1) / 2) {
+            count++;
+        }
+        this.sides = new int[count + 1];
+        this.colors = new byte[count + 1][];
+        this.watchers = (Set<ClientConnection>[]) new Set<?>[count + 1];
+        this.sides[0] = board.DIM;
+        for(int level = 1; level <= count; level++) {
+            this.sides[level] = (this.sides[level - 1] + 1) / 2;
+            this.colors[level] = new byte[this.sides[level] * this.sides[level]];
+            this.watchers[level] = ConcurrentHashMap.newKeySet();
+        }
+        rebuild();
+    }
+
+    /**
+     * Recompute every level from the board, after it was replaced, and send
+     * each client watching a level the whole level again. Every lock stripe
+     * must be held.
+     */
+    synchronized void rebuild() {
+        for(int level = 1; level < this.sides.length; level++) {
+            for(int row = 0; row < this.sides[level]; row++) {
+                for(int col = 0; col < this.sides[level]; col++) {
+                    this.colors[level][row * this.sides[level] + col] = (byte) dominant(level, row, col);
+                }
+            }
+            if(!this.watchers[level].isEmpty()) {
+                byte[] frame = PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.LEVEL, getLevel(level)));
+                for(ClientConnection client : this.watchers[level]) {
+                    client.writeFrame(frame);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recompute the cells above a changed tile, and send the ones whose color
+     * changed to the clients watching their level. Stops at the first level
+     * that did not change, since none above it can have. The lock stripe of
+     * the tile must be held.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     */
+    void update(int row, int col) {
+        int level = 1;
+        for(; level < this.sides.length && level <= this.stripedLevels; level++) {
+            row /= 2;
+            col /= 2;
+            if(!updateCell(level, row, col)) {
+                return;
+            }
+        }
+        if(level < this.sides.length) {
+            synchronized (this) {
+                for(; level < this.sides.length; level++) {
+                    row /= 2;
+                    col /= 2;
+                    if(!updateCell(level, row, col)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Recompute a cell, and send it to the clients watching its level if
+     * its color changed.
+     * @param level the level of the cell, at least 1
+     * @param row the row of the cell
+     * @param col the column of the cell
+     * @return whether the color changed
+     */
+    private boolean updateCell(int level, int row, int col) {
+        int color = dominant(level, row, col);
+        int index = row * this.sides[level] + col;
+        if(this.colors[level][index] == color) {
+            return false;
+        }
+        this.colors[level][index] = (byte) color;
+        if(!this.watchers[level].isEmpty()) {
+            byte[] frame = PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.LEVEL_CHANGED, new PlaceTile(row, col, null, COLORS[color])));
+            for(ClientConnection client : this.watchers[level]) {
+                client.writeFrame(frame);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Work out the most common color among the four cells below a cell.
+     * @param level the level of the cell, at least 1
+     * @param row the row of the cell
+     * @param col the column of the cell
+     * @return the color number
+     */
+    private int dominant(int level, int row, int col) {
+        int[] below = new int[4];
+        int count = 0;
+        for(int r = 2 * row; r <= 2 * row + 1 && r < this.sides[level - 1]; r++) {
+            for(int c = 2 * col; c <= 2 * col + 1 && c < this.sides[level - 1]; c++) {
+                below[count++] = level == 1 ? this.board.getColor(r, c).getNumber() : this.colors[level - 1][r * this.sides[level - 1] + c];
+            }
+        }
+        int best = below[0];
+        int bestVotes = 0;
+        for(int i = 0; i < count; i++) {
+            int votes = 0;
+            for(int j = 0; j < count; j++) {
+                if(below[j] == below[i]) {
+                    votes++;
+                }
+            }
+            if(votes > bestVotes) {
+                best = below[i];
+                bestVotes = votes;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Copy the cells of a level, for a client about to watch it. Every lock
+     * stripe must be held, so the copy is whole.
+     * @param level the level, at least 1
+     * @return the color number of every cell, by row and then column
+     * @throws PlaceException if there is no such level
+     */
+    synchronized byte[] copyLevel(int level) throws PlaceException {
+        if(level < 1 || level >= this.sides.length) {
+            throw new PlaceException("Invalid level of detail: " + level);
+        }
+        return this.colors[level].clone();
+    }
+
+    /**
+     * Let a client watch a level, instead of any it watched before. It must
+     * already have been sent the cells copied with copyLevel(), and is sent
+     * the cells that changed since, then every change from then on. Every
+     * lock stripe must be held.
+     * @param client the client
+     * @param level the level, at least 1
+     * @param sent the cells the client was sent
+     */
+    synchronized void watch(ClientConnection client, int level, byte[] sent) {
+        unwatch(client);
+        this.watchers[level].add(client);
+        client.setLevel(level);
+        for(int index = 0; index < sent.length; index++) {
+            if(this.colors[level][index] != sent[index]) {
+                client.write(new PlaceRequest<>(PlaceRequest.RequestType.LEVEL_CHANGED, new PlaceTile(index / this.sides[level], index % this.sides[level], null, COLORS[this.colors[level][index]])));
+            }
+        }
+    }
+
+    /**
+     * Stop sending a client changes to the level it watches, if any.
+     * @param client the client
+     */
+    synchronized void unwatch(ClientConnection client) {
+        if(client.getLevel() > 0) {
+            this.watchers[client.getLevel()].remove(client);
+            client.setLevel(0);
+        }
+    }
+
+    /**
+     * Get a copy of a level as a board of its own. Its cells only have a
+     * color, and it carries the sequence number of the board.
+     * @param level the level, at least 1
+     * @return the level
+     */
+    private PlaceBoard getLevel(int level) {
+        return toBoard(level, this.colors[level], this.board.getSequence());
+    }
+
+    /**
+     * Turn the cells of a level into a board of its own. Its cells only have
+     * a color.
+     * @param level the level, at least 1
+     * @param cells the color number of every cell, by row and then column
+     * @param sequence the sequence number of the board the cells were taken from
+     * @return the level
+     */
+    PlaceBoard toBoard(int level, byte[] cells, long sequence) {
+        PlaceBoard copy = new PlaceBoard(this.sides[level]);
+        for(int row = 0; row < this.sides[level]; row++) {
+            for(int col = 0; col < this.sides[level]; col++) {
+                copy.setColor(row, col, COLORS[cells[row * this.sides[level] + col]]);
+            }
+        }
+        copy.setSequence(sequence);
+        return copy;
+    }
+
+    /**
+     * Get the number of levels below the board.
+     * @return the number of levels
+     */
+    int getLevels() { return this.sides.length - 1; }
+}
@@ -0,0 +1,120 @@
+package place.server;
+
+import place.PlaceLogger;
+import place.PlaceTile;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects accepted tile changes and broadcasts them once per tick instead of
+ * one at a time. Changes to the same tile within a tick are collapsed so only
+ * the last one is sent, and each client gets one TILES_CHANGED per tick (more
+ * only if the tick holds more than the maximum batch size). Clients watching
+ * only part of the board get just the changes inside it, and nothing if
+ * there are none.
+ *
+ * @author Jake Waclawski
+ */
+class BroadcastTicker {
+    /** the square dimension of the board */
+    private int dim;
+    /** the largest number of tiles sent in a single batch */
+    private int maxBatchSize;
+    /** the changes accepted during the current tick, keyed by tile position */
+    private LinkedHashMap<Integer, PlaceTile> pending;
+    /** the timer running the ticks */
+    private ScheduledExecutorService timer;
+    /** the number of changes handed to the ticker */
+    private AtomicLong changesReceived;
+    /** the number of changes dropped because a later change replaced them */
+    private AtomicLong changesCoalesced;
+    /** the number of batches broadcast */
+    private AtomicLong batchesSent;
+
+    /**
+     * Create a new ticker.
+     * @param dim the square dimension of the board
+     * @param maxBatchSize the largest number of tiles sent in a single batch
+     */
+    BroadcastTicker(int dim, int maxBatchSize) {
+        this.dim = dim;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.pending = new LinkedHashMap<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.changesReceived = new AtomicLong();
+        this.changesCoalesced = new AtomicLong();
+        this.batchesSent = new AtomicLong();
+    }
+
+    /**
+     * Start broadcasting a batch every tick.
+     * @param tickLength the length of a tick, in milliseconds
+     */
+    void start(int tickLength) {
+        this.timer.scheduleAtFixedRate(this::tick, tickLength, tickLength, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add an accepted change to the current tick, replacing any earlier
+     * change to the same tile.
+     * @param tile the changed tile
+     */
+    synchronized void add(PlaceTile tile) {
+        this.changesReceived.incrementAndGet();
+        if(this.pending.put(tile.getRow() * this.dim + tile.getCol(), tile) != null) {
+            this.changesCoalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * End the current tick and broadcast its changes. A batch that could not
+     * be broadcast is logged and skipped, as the timer would run no more
+     * ticks after one that throws.
+     */
+    private void tick() {
+        Collection<PlaceTile> changes;
+        synchronized (this) {
+            if(this.pending.isEmpty()) {
+                return;
+            }
+            changes = this.pending.values();
+            this.pending = new LinkedHashMap<>();
+        }
+        PlaceTile[] tiles = changes.toArray(new PlaceTile[0]);
+        for(int from = 0; from < tiles.length; from += this.maxBatchSize) {
+            PlaceTile[] batch = Arrays.copyOfRange(tiles, from, Math.min(tiles.length, from + this.maxBatchSize));
+            try {
+                PlaceServer.broadcastBatch(batch);
+                this.batchesSent.incrementAndGet();
+            } catch (RuntimeException e) {
+                PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), "Could not broadcast " + batch.length + " tile(s): " + e);
+            }
+        }
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Broadcast " + tiles.length + " tile(s), " + this.changesCoalesced.get() + " change(s) coalesced so far");
+    }
+
+    /**
+     * Get the number of changes handed to the ticker.
+     * @return the number of changes
+     */
+    long getChangesReceived() { return this.changesReceived.get(); }
+
+    /**
+     * Get the number of changes that were never sent because a later change
+     * to the same tile in the same tick replaced them.
+     * @return the number of coalesced changes
+     */
+    long getChangesCoalesced() { return this.changesCoalesced.get(); }
+
+    /**
+     * Get the number of batches broadcast.
+     * @return the number of batches
+     */
+    long getBatchesSent() { return this.batchesSent.get(); }
+}
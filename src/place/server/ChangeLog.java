@@ -0,0 +1,160 @@
+package place.server;
+
+import place.PlaceTile;
+
+/**
+ * Numbers every accepted tile change and remembers the most recent ones in a
+ * ring buffer, so a client that reconnects can be sent just the changes it
+ * missed instead of the whole board.
+ *
+ * Changes are numbered in one short critical section, but placed on the
+ * board in parallel, so they can finish out of order. The log also keeps
+ * track of the highest sequence number up to which every change has been
+ * applied, which is the number the board may claim to hold. A log that waits
+ * for commits also keeps track of how far the journal has the changes on
+ * disk, and only hands out changes to be broadcast that are both.
+ *
+ * Sequence numbers start from the time the server started, shifted well clear
+ * of any number handed out by an earlier run, so a client that last saw an
+ * older server never mistakes the new server's changes for ones it already has.
+ *
+ * @author Jake Waclawski
+ */
+class ChangeLog {
+    /** the most recent changes, the change with sequence number s is at s % length */
+    private PlaceTile[] changes;
+    /** the sequence number the log started from, no change has a number this low */
+    private long startSequence;
+    /** the sequence number of the last change added */
+    private long lastSequence;
+    /** the sequence number of each recently applied change, at the same place as the change */
+    private long[] applied;
+    /** the sequence number up to which every change has been applied */
+    private long appliedSequence;
+    /** the sequence number up to which every change has been handed out to be broadcast */
+    private long publishedSequence;
+    /** the sequence number up to which every change is on disk, Long.MAX_VALUE if changes do not wait for the journal */
+    private long committedSequence;
+
+    /**
+     * Create a new, empty change log.
+     * @param capacity the number of changes remembered
+     * @param startSequence the sequence number the log starts from, the first
+     * change added gets the number after it
+     */
+    ChangeLog(int capacity, long startSequence) {
+        this.changes = new PlaceTile[Math.max(1, capacity)];
+        this.startSequence = startSequence;
+        this.lastSequence = startSequence;
+        this.applied = new long[this.changes.length];
+        this.appliedSequence = startSequence;
+        this.publishedSequence = startSequence;
+        this.committedSequence = Long.MAX_VALUE;
+    }
+
+    /**
+     * Hold back every change added from now on from being broadcast until
+     * it is marked as committed. The changes already in the log count as
+     * committed.
+     */
+    synchronized void waitForCommits() {
+        this.committedSequence = this.lastSequence;
+    }
+
+    /**
+     * Add an accepted change, giving it the next sequence number.
+     * @param tile the changed tile
+     * @return the change's sequence number
+     */
+    synchronized long append(PlaceTile tile) {
+        this.lastSequence++;
+        tile.setSequence(this.lastSequence);
+        this.changes[(int) (this.lastSequence % this.changes.length)] = tile;
+        return this.lastSequence;
+    }
+
+    /**
+     * Put back a change read from the journal, keeping its sequence number.
+     * Changes must be restored in order, starting with the one right after
+     * the sequence number the log started from.
+     * @param tile the changed tile
+     */
+    synchronized void restore(PlaceTile tile) {
+        this.lastSequence = tile.getSequence();
+        this.changes[(int) (this.lastSequence % this.changes.length)] = tile;
+        this.appliedSequence = this.lastSequence;
+        this.publishedSequence = this.lastSequence;
+        if(this.committedSequence != Long.MAX_VALUE) {
+            this.committedSequence = this.lastSequence;
+        }
+    }
+
+    /**
+     * Mark a change as applied to the board.
+     * @param sequence the change's sequence number
+     * @return the sequence number up to which every change has now been
+     * applied
+     */
+    synchronized long applied(long sequence) {
+        this.applied[(int) (sequence % this.applied.length)] = sequence;
+        while(this.appliedSequence < this.lastSequence && this.applied[(int) ((this.appliedSequence + 1) % this.applied.length)] == this.appliedSequence + 1) {
+            this.appliedSequence++;
+        }
+        return this.appliedSequence;
+    }
+
+    /**
+     * Mark every change up to a sequence number as on disk, if the log waits
+     * for commits.
+     * @param sequence the sequence number of the last change on disk
+     */
+    synchronized void committed(long sequence) {
+        if(this.committedSequence != Long.MAX_VALUE) {
+            this.committedSequence = Math.max(this.committedSequence, sequence);
+        }
+    }
+
+    /**
+     * Get the applied, and if the log waits for commits committed, changes
+     * that have not been handed out to be broadcast yet, oldest first, and
+     * mark them as handed out.
+     * @return the changes, empty if there are none
+     */
+    synchronized PlaceTile[] unpublished() {
+        long last = Math.min(this.appliedSequence, this.committedSequence);
+        if(last <= this.publishedSequence) {
+            return new PlaceTile[0];
+        }
+        PlaceTile[] ready = new PlaceTile[(int) (last - this.publishedSequence)];
+        for(int i = 0; i < ready.length; i++) {
+            ready[i] = this.changes[(int) ((this.publishedSequence + 1 + i) % this.changes.length)];
+        }
+        this.publishedSequence = last;
+        return ready;
+    }
+
+    /**
+     * Get every change handed out to be broadcast after a given sequence
+     * number, oldest first. Later changes reach the client with their
+     * broadcast.
+     * @param sequence the last sequence number the client saw
+     * @return the changes, or null if some of them are no longer remembered or
+     * the sequence number did not come from this log
+     */
+    synchronized PlaceTile[] since(long sequence) {
+        if(sequence < this.startSequence || sequence > this.publishedSequence || this.lastSequence - sequence > this.changes.length) {
+            return null;
+        }
+        PlaceTile[] missed = new PlaceTile[(int) (this.publishedSequence - sequence)];
+        for(int i = 0; i < missed.length; i++) {
+            missed[i] = this.changes[(int) ((sequence + 1 + i) % this.changes.length)];
+        }
+        return missed;
+    }
+
+    /**
+     * Get the sequence number of the last change added.
+     * @return the sequence number
+     */
+    synchronized long getLastSequence() { return this.lastSequence; }
+}
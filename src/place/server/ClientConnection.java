@@ -0,0 +1,302 @@
+package place.server;
+
+import place.PlaceLogger;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents a single client connected to the server, no matter which
+ * server engine is handling its network traffic. Messages for the client
+ * are encoded into frames, put on a bounded queue and written out by the
+ * client's own writer, so sending to one client never waits on another.
+ * Queued frames are never modified, which lets a broadcast encode its
+ * message once and queue the very same frame for every client.
+ *
+ * @author Jake Waclawski
+ */
+abstract class ClientConnection {
+    /**
+     * the frame standing in for the current board in a client's queue. The
+     * client's writer encodes the board once it gets to it, so whoever
+     * queued it never has to
+     */
+    static final byte[] BOARD_FRAME = new byte[0];
+
+    /** the client's username */
+    private volatile String username;
+    /** the id the server gave the client's username, 0 until logged in */
+    private volatile int userId;
+    /** the client's number */
+    private int clientNumber;
+    /** the address the client connected from */
+    private InetAddress address;
+    /** the frames waiting to be written to the client */
+    private ArrayBlockingQueue<byte[]> outgoing;
+    /** whether the client has logged in, or joined as a cluster server */
+    private AtomicBoolean admitted;
+    /** whether the client is waiting out a cool-down, with a READY scheduled to end it */
+    private AtomicBoolean coolingDown;
+    /** the rate limit of the client's username, null until logged in */
+    private volatile RateLimiter.Bucket userBucket;
+    /** the rate limit of the client's address, null if addresses are not limited */
+    private volatile RateLimiter.Bucket addressBucket;
+    /** the last sequence number a reconnecting client saw, -1 for a new client */
+    private volatile long resumeFrom;
+    /** the top row, left column, height and width of the part of the board the client watches, null for all of it */
+    private volatile int[] region;
+    /** the lower level of detail of the board the client watches, 0 for none */
+    private volatile int level;
+
+    /**
+     * Create a new client connection.
+     * @param clientNumber the client's number
+     * @param address the address the client connected from
+     */
+    ClientConnection(int clientNumber, InetAddress address) {
+        this.clientNumber = clientNumber;
+        this.address = address;
+        this.outgoing = new ArrayBlockingQueue<>(ServerConfig.OUTGOING_QUEUE_SIZE);
+        this.admitted = new AtomicBoolean(false);
+        this.coolingDown = new AtomicBoolean(false);
+        this.resumeFrom = -1;
+    }
+
+    /**
+     * Queue a message to be sent to the client. Never blocks; if the client's
+     * queue is full it is handled according to the slow client policy.
+     * @param msg the message to send
+     */
+    void write(PlaceRequest<?> msg) {
+        writeFrame(PlaceCodec.encode(msg));
+    }
+
+    /**
+     * Queue the current board to be sent to the client. It is encoded by the
+     * client's writer when it gets to it, as the board is by then.
+     */
+    void writeBoard() {
+        writeFrame(BOARD_FRAME);
+    }
+
+    /**
+     * Encode the current board into a frame.
+     * @return the frame
+     */
+    static byte[] encodeBoard() {
+        return PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, PlaceServer.getBoard()));
+    }
+
+    /**
+     * Queue an already encoded message to be sent to the client. The frame
+     * may be shared with other clients and must not be modified afterwards.
+     * Never blocks; if the client's queue is full it is handled according to
+     * the slow client policy.
+     * @param frame the encoded message
+     */
+    void writeFrame(byte[] frame) {
+        if(this.outgoing.offer(frame)) {
+            framesQueued();
+        } else {
+            fellBehind();
+        }
+    }
+
+    /**
+     * Handle a client whose queue is full. Depending on the slow client policy
+     * it is either disconnected, or its queue is thrown away and replaced by
+     * the current board. The board is only marked to be sent here; the
+     * client's own writer encodes it, so the thread broadcasting to everyone
+     * never does.
+     */
+    private synchronized void fellBehind() {
+        if(ServerConfig.SLOW_CLIENT_POLICY.equals("resync")) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Client " + this.clientNumber + " fell behind, resending the board");
+            this.outgoing.clear();
+            if(this.outgoing.offer(BOARD_FRAME)) {
+                framesQueued();
+                return;
+            }
+        }
+        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Client " + this.clientNumber + " fell behind, disconnecting");
+        disconnect();
+    }
+
+    /**
+     * Take the next queued frame without waiting.
+     * @return the frame, {@link #BOARD_FRAME} for the current board, null
+     * if the queue is empty
+     */
+    byte[] nextFrame() { return this.outgoing.poll(); }
+
+    /**
+     * Take the next queued frame, waiting for one if the queue is empty.
+     * @return the frame, {@link #BOARD_FRAME} for the current board
+     * @throws InterruptedException if interrupted while waiting
+     */
+    byte[] takeFrame() throws InterruptedException { return this.outgoing.take(); }
+
+    /**
+     * Get the number of frames waiting to be written to the client.
+     * @return the number of queued frames
+     */
+    int queuedFrames() { return this.outgoing.size(); }
+
+    /**
+     * Throw away every frame waiting to be written to the client.
+     */
+    void clearFrames() { this.outgoing.clear(); }
+
+    /**
+     * Mark the client as logged in, or joined as a cluster server.
+     * @return true if it was not marked before
+     */
+    boolean admit() { return this.admitted.compareAndSet(false, true); }
+
+    /**
+     * Check whether the client has logged in, or joined as a cluster server.
+     * @return whether the client was admitted
+     */
+    boolean isAdmitted() { return this.admitted.get(); }
+
+    /**
+     * Make sure the length of a frame read from the client is sane. Until
+     * it logs in it may only send small frames, so a connection that never
+     * logs in can not make the server set aside room for a large one.
+     * @param length the length of the payload
+     * @throws IOException if the length is negative or too large
+     */
+    void checkLength(int length) throws IOException {
+        PlaceCodec.checkLength(length);
+        if(length > ServerConfig.MAX_LOGIN_FRAME_SIZE && !isAdmitted()) {
+            throw new IOException("Frame of " + length + " bytes sent before logging in");
+        }
+    }
+
+    /**
+     * Start the client's cool-down, if it is not cooling down already. Only
+     * one READY is ever scheduled for a client, however many changes it
+     * sends in the meantime.
+     * @return true if the cool-down started, false if the client was
+     * already cooling down
+     */
+    boolean startCoolDown() { return this.coolingDown.compareAndSet(false, true); }
+
+    /**
+     * End the client's cool-down.
+     */
+    void endCoolDown() { this.coolingDown.set(false); }
+
+    /**
+     * Called after a frame has been queued so the writer can pick it up.
+     */
+    abstract void framesQueued();
+
+    /**
+     * Close the connection to the client. Safe to call from any thread and
+     * more than once.
+     */
+    abstract void disconnect();
+
+    /**
+     * Get this client's username.
+     * @return the username, null if the client has not logged in yet
+     */
+    String getUsername() { return this.username; }
+
+    /**
+     * Set this client's username.
+     * @param username the username
+     */
+    void setUsername(String username) { this.username = username; }
+
+    /**
+     * Get the last sequence number the client saw before it reconnected.
+     * @return the sequence number, -1 if the client is not reconnecting
+     */
+    long getResumeFrom() { return this.resumeFrom; }
+
+    /**
+     * Set the last sequence number the client saw before it reconnected.
+     * @param resumeFrom the sequence number
+     */
+    void setResumeFrom(long resumeFrom) { this.resumeFrom = resumeFrom; }
+
+    /**
+     * Get the part of the board the client watches.
+     * @return the top row, left column, height and width of the region, null
+     * for the whole board
+     */
+    int[] getRegion() { return this.region; }
+
+    /**
+     * Set the part of the board the client watches.
+     * @param region the top row, left column, height and width of the region,
+     * null for the whole board
+     */
+    void setRegion(int[] region) { this.region = region; }
+
+    /**
+     * Get the lower level of detail of the board the client watches.
+     * @return the level, 0 if the client watches none
+     */
+    int getLevel() { return this.level; }
+
+    /**
+     * Set the lower level of detail of the board the client watches.
+     * @param level the level, 0 for none
+     */
+    void setLevel(int level) { this.level = level; }
+
+    /**
+     * Get the id the server gave this client's username.
+     * @return the user id, 0 if the client has not logged in yet
+     */
+    int getUserId() { return this.userId; }
+
+    /**
+     * Set the id the server gave this client's username.
+     * @param userId the user id
+     */
+    void setUserId(int userId) { this.userId = userId; }
+
+    /**
+     * Get the rate limit of this client's username.
+     * @return the bucket, null if the client has not logged in yet
+     */
+    RateLimiter.Bucket getUserBucket() { return this.userBucket; }
+
+    /**
+     * Set the rate limit of this client's username.
+     * @param userBucket the bucket
+     */
+    void setUserBucket(RateLimiter.Bucket userBucket) { this.userBucket = userBucket; }
+
+    /**
+     * Get the rate limit of this client's address.
+     * @return the bucket, null if addresses are not limited
+     */
+    RateLimiter.Bucket getAddressBucket() { return this.addressBucket; }
+
+    /**
+     * Set the rate limit of this client's address.
+     * @param addressBucket the bucket
+     */
+    void setAddressBucket(RateLimiter.Bucket addressBucket) { this.addressBucket = addressBucket; }
+
+    /**
+     * Get the address this client connected from.
+     * @return the address
+     */
+    InetAddress getAddress() { return this.address; }
+
+    /**
+     * Get this client's number.
+     * @return the client number
+     */
+    int getClientNumber() { return this.clientNumber; }
+}
@@ -1,119 +1,203 @@
 package place.server;
 
-import place.PlaceBoard;
 import place.PlaceException;
 import place.PlaceLogger;
 import place.PlaceTile;
+import place.network.PlaceCodec;
 import place.network.PlaceRequest;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Date;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Represents a client thread and handles all messages
- * from the client.
+ * from the client. The server decides whether it runs on
+ * a platform thread or a virtual thread. A second thread
+ * writes the client's queued frames.
  *
  * @author Jake Waclawski
  */
-public class ClientHandler extends Thread {
+public class ClientHandler extends ClientConnection implements Runnable {
     /** the cool-down time between each user input */
     public static final int PLACE_COOL_DOWN_TIME = 1000;
+    /** the socket connected to the client */
+    private Socket clientSocket;
     /** the incoming connection from the client */
-    private ObjectInputStream networkIn;
+    private DataInputStream networkIn;
     /** the outgoing connection to the client */
-    private ObjectOutputStream networkOut;
-    /** the local place board from the server */
-    private PlaceBoard placeBoard;
-    /** the client's username */
-    private String username;
-    /** the client's number */
-    private int clientNumber;
+    private OutputStream networkOut;
+    /** the thread writing queued frames to the client */
+    private Thread writer;
+    /** the factory creating the client's threads */
+    private ThreadFactory threads;
 
     /**
-     * Create a new connection to a client.
-     * @param placeBoard the place board
-     * @param networkIn the incoming connection from the client
-     * @param networkOut the outgoing connection to the client
+     * Create a new connection to a client. Its streams are opened later, on
+     * its own thread.
+     * @param clientSocket the socket connected to the client
+     * @param clientNumber the client's number
      */
-    ClientHandler(PlaceBoard placeBoard, ObjectInputStream networkIn, ObjectOutputStream networkOut, int clientNumber) {
-        this.placeBoard = placeBoard;
-        this.networkIn = networkIn;
-        this.networkOut = networkOut;
-        this.clientNumber = clientNumber;
+    ClientHandler(Socket clientSocket, int clientNumber) {
+        super(clientNumber, clientSocket.getInetAddress());
+        this.clientSocket = clientSocket;
+    }
+
+    /**
+     * Start the reading thread for this client, which opens the client's
+     * streams and then starts the writing thread.
+     * @param threads the factory creating the client's threads
+     */
+    void start(ThreadFactory threads) {
+        this.threads = threads;
+        threads.newThread(this).start();
     }
 
     /**
      * Runs the client connection thread. Reads and handles
-     * messages from the client.
+     * messages from the client. However the connection ends, the client is
+     * removed from the server and both threads stop; a request that can not
+     * be handled is treated as a protocol error and ends it too.
      */
     @Override
     public void run() {
-        while(true) {
+        try {
             try {
-                PlaceRequest<?> response = (PlaceRequest<?>) networkIn.readUnshared();
-                PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.clientNumber + " " + response.toString());
-                switch (response.getType()){
-                    case LOGIN:
-                        String user = (String) response.getData();
-                        this.username = user;
-                        if(PlaceServer.addClient(this)){
-                            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.clientNumber + " connected to server with username: " + user);
-                            PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), user + " logged in to server");
-                            write(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, this.clientNumber));
-                            write(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, this.placeBoard));
-                        } else {
-                            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), user + " failed to log in (username taken).");
-                            write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, response.getData()));
-                        }
-                        break;
-                    case CHANGE_TILE:
-                        PlaceTile tile = (PlaceTile) response.getData();
-
-                        Date date = new Date();
-                        long timeMilliseconds = date.getTime();
-                        tile.setTime(timeMilliseconds);
-
-                        PlaceServer.updateTile(tile);
-                        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.clientNumber + " updating: " + tile);
-                        PlaceServer.sendToAll(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+                this.networkIn = new DataInputStream(new BufferedInputStream(this.clientSocket.getInputStream()));
+                this.networkOut = new BufferedOutputStream(this.clientSocket.getOutputStream());
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.getClientNumber() + " disconnected before its streams were opened");
+                return;
+            }
+            this.writer = this.threads.newThread(this::writeFrames);
+            this.writer.start();
+            while(true) {
+                try {
+                    handle(readRequest());
+                } catch (PlaceException e) {
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " : " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.getClientNumber() + " disconnected from server");
+            PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), this.getUsername() + " logged out of server");
+        } catch (RuntimeException e) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " sent a request that could not be handled, disconnecting: " + e);
+        } finally {
+            PlaceServer.removeClient(this);
+            disconnect();
+            if(this.writer != null) {
+                this.writer.interrupt();
+            }
+        }
+    }
 
-                        Thread.sleep(PLACE_COOL_DOWN_TIME);
+    /**
+     * Read the next request from the client.
+     * @return the request
+     * @throws IOException if the connection is lost, or the frame is malformed
+     */
+    private PlaceRequest<?> readRequest() throws IOException {
+        int length = networkIn.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        networkIn.readFully(payload);
+        PlaceServer.getMetrics().received(PlaceCodec.HEADER_SIZE + length);
+        PlaceRequest<?> response = PlaceCodec.decodeFromClient(payload, 0, length);
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.getClientNumber() + " " + response.toString());
+        return response;
+    }
 
-                        write(new PlaceRequest<>(PlaceRequest.RequestType.READY, null));
-                        break;
-                    default:
-                        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.clientNumber + " : Unexpected type: " + response.getType());
-                        break;
-                }
-            } catch (ClassNotFoundException | InterruptedException | PlaceException e) {
-                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.clientNumber + " : " + e.getMessage());
-            } catch (IOException e) {
-                PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.clientNumber + " disconnected from server");
-                PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), this.username + " logged out of server");
-                PlaceServer.removeClient(this);
+    /**
+     * Handle a request from the client.
+     * @param response the request
+     * @throws PlaceException if the request is refused
+     */
+    private void handle(PlaceRequest<?> response) throws PlaceException {
+        switch (response.getType()){
+            case LOGIN:
+                PlaceServer.login(this, (String) response.getData());
+                break;
+            case CHANGE_TILE:
+                PlaceServer.changeTile(this, (PlaceTile) response.getData());
+                break;
+            case RESUME:
+                setResumeFrom((Long) response.getData());
+                break;
+            case GET_USERNAME:
+                PlaceServer.lookUpUsername(this, (Integer) response.getData());
+                break;
+            case GET_BOARD_AT:
+                PlaceServer.lookUpBoard(this, (Long) response.getData());
+                break;
+            case GET_HISTORY:
+                PlaceServer.lookUpHistory(this, (PlaceTile) response.getData());
+                break;
+            case REPLICATE:
+                Object[] join = (Object[]) response.getData();
+                PlaceServer.join(this, (Long) join[0], (String) join[1]);
+                break;
+            case FORWARD_TILE:
+                PlaceServer.forwardTile(this, (PlaceTile) response.getData());
+                break;
+            case SUBSCRIBE:
+                PlaceServer.subscribe(this, (int[]) response.getData());
+                break;
+            case GET_LEVEL:
+                PlaceServer.watchLevel(this, (Integer) response.getData());
+                break;
+            default:
+                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " : Unexpected type: " + response.getType());
                 break;
-            }
         }
     }
 
     /**
-     * Write a message to the client over the network.
-     * @param msg the message to send
+     * Runs the writing thread. Writes queued frames to the client,
+     * encoding the board when it comes up and flushing whenever the queue
+     * runs empty.
      */
-    synchronized void write(PlaceRequest msg) {
+    private void writeFrames() {
         try {
-            networkOut.writeUnshared(msg);
-            networkOut.flush();
+            while(true) {
+                byte[] frame = takeFrame();
+                if(frame == BOARD_FRAME) {
+                    frame = encodeBoard();
+                }
+                networkOut.write(frame);
+                PlaceServer.getMetrics().sent(frame.length);
+                if(queuedFrames() == 0) {
+                    networkOut.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            clearFrames();
         } catch (IOException e) {
-            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.clientNumber + " : " + e.getMessage());
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " : " + e.getMessage());
+            disconnect();
         }
     }
 
     /**
-     * Get this client's username.
-     * @return the username
+     * Nothing to do, the writing thread is already waiting on the queue.
+     */
+    @Override
+    void framesQueued() { }
+
+    /**
+     * Close the client socket. The reading thread then notices the
+     * disconnect and cleans up.
      */
-    String getUsername() { return this.username; }
+    @Override
+    void disconnect() {
+        try {
+            this.clientSocket.close();
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " : " + e.getMessage());
+        }
+    }
 }
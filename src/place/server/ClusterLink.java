@@ -0,0 +1,218 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceLogger;
+import place.PlaceTile;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The connection from a server in a cluster to the cluster's leader. The
+ * leader numbers every change made anywhere in the cluster, so all servers
+ * apply them in the same order and share one board.
+ *
+ * The link joins the leader with a REPLICATE carrying the cluster secret, and
+ * then applies the changes
+ * the leader sends, which the server broadcasts to its own clients. Changes
+ * made by the server's clients are queued and passed on to the leader. If
+ * the leader is lost the link keeps reconnecting, and resumes from the last
+ * change it holds.
+ *
+ * @author Jake Waclawski
+ */
+class ClusterLink {
+    /** the time between attempts to reach the leader, in milliseconds */
+    private static final int RECONNECT_DELAY = 1000;
+
+    /** the host name of the leader */
+    private String host;
+    /** the port of the leader */
+    private int port;
+    /** the secret the leader lets servers join with */
+    private String secret;
+    /** the frames waiting to be written to the leader */
+    private ArrayBlockingQueue<byte[]> outgoing;
+    /** the socket connected to the leader, null while it can not be reached */
+    private volatile Socket socket;
+    /** whether the board has been copied from the leader at least once */
+    private boolean synced;
+
+    /**
+     * Create a link to a leader. It does not connect until started.
+     * @param leader the leader, as host:port
+     * @param secret the secret the leader lets servers join with
+     * @throws IllegalArgumentException if the leader is not host:port, or
+     * there is no secret
+     */
+    ClusterLink(String leader, String secret) {
+        int colon = leader.lastIndexOf(':');
+        if(colon < 1) {
+            throw new IllegalArgumentException("The leader must be given as host:port, not " + leader);
+        }
+        if(secret == null) {
+            throw new IllegalArgumentException("A cluster secret must be set with place.cluster.secret to join a leader");
+        }
+        this.secret = secret;
+        this.host = leader.substring(0, colon);
+        this.port = Integer.parseInt(leader.substring(colon + 1));
+        this.outgoing = new ArrayBlockingQueue<>(ServerConfig.OUTGOING_QUEUE_SIZE);
+    }
+
+    /**
+     * Start connecting to the leader.
+     */
+    void start() {
+        Thread reader = new Thread(this::run, "Cluster link");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Queue a change made by one of this server's clients to be passed on to
+     * the leader.
+     * @param tile the changed tile, carrying its owner's username
+     * @return true if the change was queued, false if the leader can not be
+     * reached or is too far behind
+     */
+    boolean forward(PlaceTile tile) {
+        return this.socket != null && this.outgoing.offer(PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.FORWARD_TILE, tile)));
+    }
+
+    /**
+     * Runs the link thread. Connects to the leader, joins it, and applies
+     * everything it sends until the connection is lost, then tries again. It
+     * stops for good if the leader's board can not be followed.
+     */
+    private void run() {
+        while(true) {
+            try (Socket leader = new Socket(this.host, this.port)) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(leader.getInputStream()));
+                OutputStream out = new BufferedOutputStream(leader.getOutputStream());
+                long from = this.synced ? PlaceServer.getBoard().getSequence() : -1;
+                PlaceCodec.write(out, new PlaceRequest<>(PlaceRequest.RequestType.REPLICATE, new Object[] { from, this.secret }));
+                this.outgoing.clear();
+                this.socket = leader;
+                Thread writer = new Thread(() -> writeFrames(out), "Cluster link writer");
+                writer.setDaemon(true);
+                writer.start();
+                PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), "Joined the cluster leader at " + this.host + ":" + this.port);
+                try {
+                    read(in);
+                    return;
+                } finally {
+                    this.socket = null;
+                    writer.interrupt();
+                }
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Lost the cluster leader at " + this.host + ":" + this.port + ": " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply everything the leader sends, in order. A message that can not be
+     * handled drops the connection, so the link catches up again from the
+     * last change it holds.
+     * @param in the stream from the leader
+     * @throws IOException if the connection is lost, or a message could not
+     * be handled
+     */
+    private void read(DataInputStream in) throws IOException {
+        while(true) {
+            PlaceRequest<?> request = PlaceCodec.read(in);
+            try {
+                if(!handle(request)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Could not handle a " + request.getType() + " from the cluster leader", e);
+            }
+        }
+    }
+
+    /**
+     * Apply a message from the leader.
+     * @param request the message
+     * @return true to carry on, false if the leader's board can not be
+     * followed and the link has to stop
+     */
+    private boolean handle(PlaceRequest<?> request) {
+        switch (request.getType()) {
+            case BOARD:
+                PlaceBoard board = (PlaceBoard) request.getData();
+                if(board.DIM != PlaceServer.getBoard().DIM) {
+                    PlaceLogger.log(PlaceLogger.LogType.FATAL, this.getClass().getName(), "The cluster leader's board is " + board.DIM + " tiles wide, not " + PlaceServer.getBoard().DIM);
+                    return false;
+                }
+                PlaceServer.replicateBoard(board);
+                this.synced = true;
+                break;
+            case TILE_CHANGED:
+                PlaceServer.replicate(new PlaceTile[] { (PlaceTile) request.getData() });
+                break;
+            case TILES_CHANGED:
+                PlaceServer.replicate((PlaceTile[]) request.getData());
+                break;
+            case USERNAME:
+                PlaceServer.replicateUsernames((Map<?, ?>) request.getData());
+                break;
+            case ERROR:
+                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "The cluster leader refused a change: " + request.getData());
+                break;
+            default:
+                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Unexpected type from the cluster leader: " + request.getType());
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the writing thread. Writes queued frames to the leader, flushing
+     * whenever the queue runs empty.
+     * @param out the stream to the leader
+     */
+    private void writeFrames(OutputStream out) {
+        try {
+            while(true) {
+                out.write(this.outgoing.take());
+                if(this.outgoing.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            this.outgoing.clear();
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+            disconnect();
+        }
+    }
+
+    /**
+     * Close the connection to the leader. The link thread then notices and
+     * reconnects.
+     */
+    private void disconnect() {
+        Socket leader = this.socket;
+        if(leader != null) {
+            try {
+                leader.close();
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+            }
+        }
+    }
+}
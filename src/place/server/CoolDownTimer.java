@@ -0,0 +1,129 @@
+package place.server;
+
+import place.PlaceLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel that ends client cool-downs. A single thread advances
+ * the wheel one slot per tick and runs the tasks whose time has come, so any
+ * number of clients can be cooling down at once without a thread each.
+ * Scheduling and expiring a task are both constant time.
+ *
+ * @author Jake Waclawski
+ */
+class CoolDownTimer extends Thread {
+    /** the length of a tick, in milliseconds */
+    private static final int TICK_LENGTH = 10;
+    /** the number of slots on the wheel, a power of two */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * A task waiting on the wheel. Tasks in the same slot are chained
+     * together through {@link #next}.
+     */
+    private static class Timeout {
+        /** the time the task should run, in nanoseconds */
+        private long deadline;
+        /** the task to run */
+        private Runnable task;
+        /** the number of full turns of the wheel left before the task runs */
+        private long rounds;
+        /** the next task in the same slot */
+        private Timeout next;
+
+        /**
+         * Create a new timeout.
+         * @param deadline the time the task should run, in nanoseconds
+         * @param task the task to run
+         */
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /** the slots of the wheel, each the head of a chain of timeouts */
+    private Timeout[] wheel;
+    /** timeouts scheduled since the last tick, not yet placed on the wheel */
+    private Queue<Timeout> scheduled;
+    /** the time the wheel started turning, in nanoseconds */
+    private long startTime;
+    /** the number of ticks the wheel has advanced */
+    private long tick;
+
+    /**
+     * Create a new timer. It does not run until started.
+     */
+    CoolDownTimer() {
+        super("CoolDownTimer");
+        setDaemon(true);
+        this.wheel = new Timeout[WHEEL_SIZE];
+        this.scheduled = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Run a task once a delay has passed. Safe to call from any thread.
+     * @param task the task to run, it should be short and must not block
+     * @param delay the delay, in milliseconds
+     */
+    void schedule(Runnable task, long delay) {
+        this.scheduled.add(new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), task));
+    }
+
+    /**
+     * Runs the timer. Every tick, places newly scheduled timeouts on the
+     * wheel and runs the expired ones in the current slot.
+     */
+    @Override
+    public void run() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_LENGTH);
+        this.startTime = System.nanoTime();
+        while(true) {
+            long now = this.tick + 1;
+            long sleep = this.startTime + now * tickNanos - System.nanoTime();
+            if(sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            Timeout timeout;
+            while((timeout = this.scheduled.poll()) != null) {
+                long expiresAt = Math.max(now, (timeout.deadline - this.startTime + tickNanos - 1) / tickNanos);
+                timeout.rounds = (expiresAt - now) / WHEEL_SIZE;
+                int slot = (int) (expiresAt & (WHEEL_SIZE - 1));
+                timeout.next = this.wheel[slot];
+                this.wheel[slot] = timeout;
+            }
+
+            int slot = (int) (now & (WHEEL_SIZE - 1));
+            Timeout previous = null;
+            timeout = this.wheel[slot];
+            while(timeout != null) {
+                Timeout next = timeout.next;
+                if(timeout.rounds > 0) {
+                    timeout.rounds--;
+                    previous = timeout;
+                } else {
+                    if(previous == null) {
+                        this.wheel[slot] = next;
+                    } else {
+                        previous.next = next;
+                    }
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.toString());
+                    }
+                }
+                timeout = next;
+            }
+            this.tick = now;
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package place.server;
+
+import place.PlaceColor;
+import place.PlaceLogger;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every accepted tile change, used to rebuild the
+ * board when the server starts again. Changes are handed to the journal as
+ * they are accepted and written out by the journal's own thread in batches,
+ * so the cost of each write, and of each fsync, is shared by every change
+ * that arrived in the meantime (group commit).
+ *
+ * How often the journal is forced to disk is set by the sync policy:
+ * <pre>
+ *     always     after every batch; changes are only broadcast once they are on disk,
+ *                see {@link #setCommitListener(LongConsumer)}
+ *     interval   a batch is written and forced every sync interval
+ *     os         a batch is written every sync interval, the OS decides when it reaches the disk
+ * </pre>
+ *
+ * The journal is a directory of segment files, each named after the sequence
+ * number of its first change. A new segment is started once the current one
+ * reaches the segment size, so segments whose changes are all covered by a
+ * board snapshot can simply be deleted. Each segment starts with a 16 byte
+ * header (magic number, version, board dimension) followed by fixed size
+ * records: long sequence, int row, int col, byte color, long time, int owner
+ * id and a CRC-32 of the rest of the record. A record cut short or damaged
+ * by a crash ends the journal. Records in the journal are always in
+ * sequence; a journal that can not carry on from its last change is set aside
+ * and a new one started, see {@link #continueAt(long)}.
+ *
+ * If a batch can not be written the server is stopped, as it could no longer
+ * keep any change it accepts. Until it exits, waiting changes are dropped and
+ * {@link #hasFailed()} tells the server to refuse new ones, rather than
+ * letting them pile up in memory without ever reaching the disk.
+ *
+ * @author Jake Waclawski
+ */
+class Journal extends Thread {
+    /** the number that every segment starts with, "PLCJ" */
+    private static final int MAGIC = 0x504C434A;
+    /** the version of the file format */
+    private static final int VERSION = 1;
+    /** the size of a segment header, in bytes */
+    private static final int HEADER_SIZE = 16;
+    /** the size of a record, in bytes */
+    private static final int RECORD_SIZE = 8 + 4 + 4 + 1 + 8 + 4 + 4;
+    /** the size of the buffer used while replaying, in records */
+    private static final int REPLAY_BATCH = 32 * 1024;
+    /** the start of every segment file name */
+    private static final String SEGMENT_PREFIX = "journal-";
+    /** the end of every segment file name */
+    private static final String SEGMENT_SUFFIX = ".log";
+    /** the place colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** the directory holding the segments */
+    private Path directory;
+    /** the square dimension of the board */
+    private int dim;
+    /** the sequence number of the first change in each segment, oldest first */
+    private ArrayList<Long> segments;
+    /** the segment being appended to, null if the next batch starts a new one */
+    private FileChannel file;
+    /** the size a segment may grow to before a new one is started, in bytes */
+    private long segmentSize;
+    /** the sync policy, "always", "interval" or "os" */
+    private String syncPolicy;
+    /** the time between batches for the interval and os policies, in milliseconds */
+    private int syncInterval;
+    /** the changes waiting to be written */
+    private ArrayList<PlaceTile> pending;
+    /** told the sequence number of the last change of every batch once it is written, null if no one listens */
+    private volatile LongConsumer commitListener;
+    /** the buffer batches are written from, only used while holding the lock */
+    private ByteBuffer batch;
+    /** the checksum of a record */
+    private CRC32 checksum;
+    /** held while writing, rolling over or deleting segments */
+    private final Object writeLock;
+    /** the sequence number of the first change in the journal, 0 if there is none */
+    private long firstSequence;
+    /** the sequence number of the last change in the journal, 0 if there is none */
+    private long lastSequence;
+    /** the sequence number of the last change written to the segments, 0 if there is none */
+    private volatile long writtenSequence;
+    /** the number of batches written */
+    private volatile long batches;
+    /** the number of changes written */
+    private volatile long records;
+    /** why the journal stopped writing, null while it is still working */
+    private volatile IOException failure;
+
+    /**
+     * Open a journal, creating its directory if it does not exist yet. Every
+     * segment is read through once to find the first and last changes, and
+     * anything after the last whole record is cut off. It does not write
+     * anything until started.
+     * @param directory the directory holding the segments
+     * @param dim the square dimension of the board
+     * @param syncPolicy the sync policy, "always", "interval" or "os"
+     * @param syncInterval the time between batches for the interval and os
+     * policies, in milliseconds
+     * @param segmentSize the size a segment may grow to before a new one is
+     * started, in bytes
+     * @throws IOException if the journal could not be opened, or belongs to
+     * a board of another dimension
+     */
+    Journal(Path directory, int dim, String syncPolicy, int syncInterval, long segmentSize) throws IOException {
+        super("Journal");
+        setDaemon(true);
+        this.directory = directory;
+        this.dim = dim;
+        this.segmentSize = Math.max(HEADER_SIZE + RECORD_SIZE, segmentSize);
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = Math.max(1, syncInterval);
+        this.pending = new ArrayList<>();
+        this.batch = ByteBuffer.allocate(1024 * RECORD_SIZE);
+        this.checksum = new CRC32();
+        this.writeLock = new Object();
+
+        Files.createDirectories(directory);
+        this.segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for(Path segment : files) {
+                String name = segment.getFileName().toString();
+                try {
+                    this.segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Ignoring " + segment + ", not a journal segment");
+                }
+            }
+        }
+        Collections.sort(this.segments);
+        replay(null);
+        this.writtenSequence = this.lastSequence;
+
+        if(!this.segments.isEmpty()) {
+            Path last = segmentPath(this.segments.get(this.segments.size() - 1));
+            if(Files.size(last) < this.segmentSize) {
+                this.file = FileChannel.open(last, StandardOpenOption.WRITE);
+                this.file.position(this.file.size());
+            }
+        }
+    }
+
+    /**
+     * Read every change in the journal, oldest first. The first read, while
+     * the journal is opened, also cuts off whatever follows the last whole
+     * record in sequence, deleting any later segments.
+     * @param changes given each change, may be null to only scan the journal
+     * @throws IOException if the journal could not be read
+     */
+    void replay(Consumer<PlaceTile> changes) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(REPLAY_BATCH * RECORD_SIZE);
+        long first = 0;
+        long last = 0;
+        for(int s = 0; s < this.segments.size(); s++) {
+            Path path = segmentPath(this.segments.get(s));
+            boolean broken = false;
+            try (FileChannel segment = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while(header.hasRemaining() && segment.read(header, header.position()) > 0) {
+                    // keep reading until the header is complete or the segment ends
+                }
+                header.flip();
+                if(header.remaining() < HEADER_SIZE) {
+                    header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(this.dim).putInt(0).flip();
+                    segment.truncate(0);
+                    segment.write(header, 0);
+                    continue;
+                }
+                if(header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IOException(path + " is not a journal segment");
+                }
+                int segmentDim = header.getInt();
+                if(segmentDim != this.dim) {
+                    throw new IOException(path + " is a journal segment of a board of dimension " + segmentDim + ", not " + this.dim);
+                }
+
+                long position = HEADER_SIZE;
+                while(!broken) {
+                    in.clear();
+                    int read = 0;
+                    while(in.hasRemaining() && (read = segment.read(in, position + in.position())) > 0) {
+                        // keep reading until the buffer is full or the segment ends
+                    }
+                    in.flip();
+                    while(in.remaining() >= RECORD_SIZE) {
+                        PlaceTile tile = getRecord(in);
+                        if(tile == null || (last != 0 && tile.getSequence() != last + 1)) {
+                            broken = true;
+                            break;
+                        }
+                        if(first == 0) {
+                            first = tile.getSequence();
+                        }
+                        last = tile.getSequence();
+                        position += RECORD_SIZE;
+                        if(changes != null) {
+                            changes.accept(tile);
+                        }
+                    }
+                    if(read <= 0 || in.limit() < in.capacity()) {
+                        broken = broken || position < segment.size();
+                        break;
+                    }
+                }
+                if(broken && changes == null) {
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Cutting off the journal after change " + last + ", " + (segment.size() - position) + " byte(s) of " + path + " are damaged");
+                    segment.truncate(position);
+                    segment.force(true);
+                }
+            }
+            if(broken && changes == null) {
+                while(this.segments.size() > s + 1) {
+                    Path later = segmentPath(this.segments.remove(s + 1));
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Deleting " + later + ", it follows a damaged segment");
+                    Files.delete(later);
+                }
+            }
+            if(broken) {
+                break;
+            }
+        }
+        synchronized (this) {
+            this.firstSequence = first;
+            this.lastSequence = last;
+        }
+    }
+
+    /**
+     * Make sure the next change appended is written in sequence. If the
+     * journal does not end right before it, for example because the board
+     * file holds changes the journal lost in a crash, the segments are
+     * renamed out of the way, so they are neither replayed nor written past
+     * the gap, and the next batch starts a new segment named after the
+     * change. Must be called before the journal is started.
+     * @param sequence the sequence number of the next change
+     * @throws IOException if the segments could not be set aside
+     */
+    void continueAt(long sequence) throws IOException {
+        synchronized (this.writeLock) {
+            long last = getLastSequence();
+            if((last != 0 && sequence == last + 1) || this.segments.isEmpty()) {
+                return;
+            }
+            if(this.file != null) {
+                this.file.close();
+                this.file = null;
+            }
+            for(long segment : this.segments) {
+                Path path = segmentPath(segment);
+                Path aside = path.resolveSibling(path.getFileName() + ".old");
+                Files.move(path, aside, StandardCopyOption.REPLACE_EXISTING);
+                PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), "Moved " + path + " to " + aside + ", the journal ends at change " + last + " but carries on from " + sequence);
+            }
+            this.segments.clear();
+            synchronized (this) {
+                this.firstSequence = 0;
+                this.lastSequence = 0;
+            }
+            this.writtenSequence = 0;
+        }
+    }
+
+    /**
+     * Check whether the journal stopped writing.
+     * @return true if a batch could not be written and changes must be refused
+     */
+    boolean hasFailed() { return this.failure != null; }
+
+    /**
+     * Listen for batches being written. The listener is told the sequence
+     * number of the last change of every batch once the batch is written,
+     * and forced to disk if the sync policy asks for it, on whichever
+     * thread wrote it. Must be called before the journal is started.
+     * @param listener the listener
+     */
+    void setCommitListener(LongConsumer listener) { this.commitListener = listener; }
+
+    /**
+     * Add an accepted change to the journal. Must be called in sequence
+     * order. Once the journal has failed the change is dropped.
+     * @param tile the changed tile
+     */
+    void append(PlaceTile tile) {
+        synchronized (this) {
+            if(this.failure != null) {
+                return;
+            }
+            this.pending.add(tile);
+            if(this.firstSequence == 0) {
+                this.firstSequence = tile.getSequence();
+            }
+            this.lastSequence = tile.getSequence();
+            if(this.syncPolicy.equals("always")) {
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Runs the journal. Writes out the waiting changes in batches according
+     * to the sync policy until the server stops. A batch that can not be
+     * written stops the server.
+     */
+    @Override
+    public void run() {
+        try {
+            while(true) {
+                if(this.syncPolicy.equals("always")) {
+                    synchronized (this) {
+                        while(this.pending.isEmpty()) {
+                            wait();
+                        }
+                    }
+                } else {
+                    Thread.sleep(this.syncInterval);
+                }
+                commit(!this.syncPolicy.equals("os"));
+            }
+        } catch (InterruptedException e) {
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Journal stopped");
+        } catch (IOException e) {
+            int dropped;
+            synchronized (this) {
+                this.failure = e;
+                dropped = this.pending.size();
+                this.pending = new ArrayList<>();
+            }
+            PlaceLogger.log(PlaceLogger.LogType.FATAL, this.getClass().getName(), PlaceLogger.getLineNumber(), "Could not write the journal, dropped " + dropped + " change(s), stopping: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write every waiting change to the journal in one batch, starting a new
+     * segment first if the current one is full, then tell the commit
+     * listener. The listener is told outside the lock, so it may take locks
+     * of its own; batches only ever grow the sequence number it is told.
+     * @param force whether to force the batch to disk
+     * @throws IOException if the journal could not be written, now or before
+     */
+    void commit(boolean force) throws IOException {
+        long written;
+        synchronized (this.writeLock) {
+            if(this.failure != null) {
+                throw new IOException("The journal stopped writing", this.failure);
+            }
+            ArrayList<PlaceTile> tiles;
+            synchronized (this) {
+                if(this.pending.isEmpty()) {
+                    return;
+                }
+                tiles = this.pending;
+                this.pending = new ArrayList<>();
+            }
+            if(this.file != null && this.file.size() >= this.segmentSize) {
+                this.file.force(false);
+                this.file.close();
+                this.file = null;
+            }
+            if(this.file == null) {
+                startSegment(tiles.get(0).getSequence());
+            }
+            if(this.batch.capacity() < tiles.size() * RECORD_SIZE) {
+                this.batch = ByteBuffer.allocate(tiles.size() * RECORD_SIZE);
+            }
+            this.batch.clear();
+            for(PlaceTile tile : tiles) {
+                putRecord(this.batch, tile);
+            }
+            this.batch.flip();
+            while(this.batch.hasRemaining()) {
+                this.file.write(this.batch);
+            }
+            if(force) {
+                this.file.force(false);
+            }
+            this.batches++;
+            this.records += tiles.size();
+            written = tiles.get(tiles.size() - 1).getSequence();
+            this.writtenSequence = written;
+        }
+        LongConsumer listener = this.commitListener;
+        if(listener != null) {
+            listener.accept(written);
+        }
+    }
+
+    /**
+     * Write the waiting changes now instead of with the next batch, forcing
+     * them to disk unless the sync policy leaves that to the OS, just like
+     * the journal's thread would.
+     * @throws IOException if the journal could not be written
+     */
+    void commitWaiting() throws IOException {
+        commit(!this.syncPolicy.equals("os"));
+    }
+
+    /**
+     * Start a new segment.
+     * @param sequence the sequence number of the segment's first change
+     * @throws IOException if the segment could not be created
+     */
+    private void startSegment(long sequence) throws IOException {
+        Path path = segmentPath(sequence);
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(this.dim).putInt(0).flip();
+        while(header.hasRemaining()) {
+            this.file.write(header);
+        }
+        this.segments.add(sequence);
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Started journal segment " + path);
+    }
+
+    /**
+     * Find the last change made at or before a time. Records are fixed size
+     * and their times only go up, so this is a binary search over the
+     * segments and then over the records of one segment.
+     * @param time the time, in milliseconds since the epoch
+     * @return the sequence number of the change, 0 if every change in the
+     * journal was made after the time
+     * @throws IOException if the journal could not be read
+     */
+    long sequenceAt(long time) throws IOException {
+        ArrayList<Long> firsts = getSegments();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        int low = 0;
+        int high = firsts.size() - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            PlaceTile first = readRecord(firsts.get(middle), 0, record);
+            if(first == null || first.getTime() > time) {
+                high = middle - 1;
+            } else {
+                low = middle + 1;
+            }
+        }
+        if(high < 0) {
+            return 0;
+        }
+        long segment = firsts.get(high);
+        long lowRecord = 0;
+        long highRecord = (Files.size(segmentPath(segment)) - HEADER_SIZE) / RECORD_SIZE - 1;
+        while(lowRecord <= highRecord) {
+            long middle = (lowRecord + highRecord) >>> 1;
+            PlaceTile tile = readRecord(segment, middle, record);
+            if(tile == null || tile.getTime() > time) {
+                highRecord = middle - 1;
+            } else {
+                lowRecord = middle + 1;
+            }
+        }
+        return Math.min(segment + highRecord, getLastSequence());
+    }
+
+    /**
+     * Read the changes with sequence numbers in a range, oldest first. Each
+     * record's place in its segment follows from its sequence number, so
+     * reading starts right at the first change asked for.
+     * @param from the sequence number of the first change
+     * @param to the sequence number of the last change
+     * @param changes given each change
+     * @throws IOException if the journal could not be read, or no longer
+     * holds the first change
+     */
+    void replay(long from, long to, Consumer<PlaceTile> changes) throws IOException {
+        ArrayList<Long> firsts = getSegments();
+        if(from > to) {
+            return;
+        }
+        if(firsts.isEmpty() || from < firsts.get(0)) {
+            throw new IOException("The journal no longer holds change " + from);
+        }
+        int s = firsts.size() - 1;
+        while(firsts.get(s) > from) {
+            s--;
+        }
+        ByteBuffer in = ByteBuffer.allocate(REPLAY_BATCH * RECORD_SIZE);
+        long next = from;
+        for(; s < firsts.size() && next <= to; s++) {
+            long segmentFirst = firsts.get(s);
+            try (FileChannel segment = FileChannel.open(segmentPath(segmentFirst), StandardOpenOption.READ)) {
+                long position = HEADER_SIZE + (next - segmentFirst) * RECORD_SIZE;
+                while(next <= to) {
+                    in.clear();
+                    in.limit((int) Math.min(in.capacity(), (to - next + 1) * RECORD_SIZE));
+                    while(in.hasRemaining() && segment.read(in, position + in.position()) > 0) {
+                        // keep reading until the buffer is full or the segment ends
+                    }
+                    in.flip();
+                    if(in.remaining() < RECORD_SIZE) {
+                        break;
+                    }
+                    while(in.remaining() >= RECORD_SIZE) {
+                        PlaceTile tile = getRecord(in);
+                        if(tile == null || tile.getSequence() != next) {
+                            throw new IOException("The journal is damaged at change " + next);
+                        }
+                        changes.accept(tile);
+                        next++;
+                        position += RECORD_SIZE;
+                    }
+                }
+            }
+        }
+        if(next <= to) {
+            throw new IOException("The journal ends before change " + to);
+        }
+    }
+
+    /**
+     * Read a single record.
+     * @param segment the sequence number of the segment's first change
+     * @param index the record's place in the segment
+     * @param record a buffer to read into
+     * @return the changed tile, null if the record is missing or damaged
+     * @throws IOException if the segment could not be read
+     */
+    private PlaceTile readRecord(long segment, long index, ByteBuffer record) throws IOException {
+        try (FileChannel file = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+            record.clear();
+            while(record.hasRemaining() && file.read(record, HEADER_SIZE + index * RECORD_SIZE + record.position()) > 0) {
+                // keep reading until the record is complete or the segment ends
+            }
+            record.flip();
+            return record.remaining() == RECORD_SIZE ? getRecord(record) : null;
+        }
+    }
+
+    /**
+     * Get the sequence numbers of the first change in each segment.
+     * @return a copy of the list, oldest first
+     */
+    private ArrayList<Long> getSegments() {
+        synchronized (this.writeLock) {
+            return new ArrayList<>(this.segments);
+        }
+    }
+
+    /**
+     * Delete every segment whose changes all came before a sequence number,
+     * once a board snapshot holds them. The segment being appended to is
+     * always kept.
+     * @param sequence the sequence number of the last change the snapshot holds
+     * @return the number of segments deleted
+     * @throws IOException if a segment could not be deleted
+     */
+    int truncate(long sequence) throws IOException {
+        int deleted = 0;
+        synchronized (this.writeLock) {
+            while(this.segments.size() > 1 && this.segments.get(1) <= sequence + 1) {
+                Files.delete(segmentPath(this.segments.remove(0)));
+                deleted++;
+            }
+            synchronized (this) {
+                if(!this.segments.isEmpty() && this.firstSequence != 0) {
+                    this.firstSequence = Math.max(this.firstSequence, this.segments.get(0));
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Get the path of a segment.
+     * @param sequence the sequence number of the segment's first change
+     * @return the path
+     */
+    private Path segmentPath(long sequence) {
+        return this.directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Write a change as a record.
+     * @param out the buffer to write to
+     * @param tile the changed tile
+     */
+    private void putRecord(ByteBuffer out, PlaceTile tile) {
+        int start = out.position();
+        out.putLong(tile.getSequence());
+        out.putInt(tile.getRow());
+        out.putInt(tile.getCol());
+        out.put((byte) tile.getColor().getNumber());
+        out.putLong(tile.getTime());
+        out.putInt(tile.getOwnerId());
+        this.checksum.reset();
+        this.checksum.update(out.array(), start, RECORD_SIZE - 4);
+        out.putInt((int) this.checksum.getValue());
+    }
+
+    /**
+     * Read a record back into a change.
+     * @param in the buffer to read from, with at least a whole record left
+     * @return the changed tile, null if the record is damaged
+     */
+    private PlaceTile getRecord(ByteBuffer in) {
+        CRC32 crc = new CRC32();
+        crc.update(in.array(), in.position(), RECORD_SIZE - 4);
+        long sequence = in.getLong();
+        int row = in.getInt();
+        int col = in.getInt();
+        int color = in.get();
+        long time = in.getLong();
+        int ownerId = in.getInt();
+        if(in.getInt() != (int) crc.getValue() || color < 0 || color >= COLORS.length) {
+            return null;
+        }
+        PlaceTile tile = new PlaceTile(row, col, null, COLORS[color], time);
+        tile.setSequence(sequence);
+        tile.setOwnerId(ownerId);
+        return tile;
+    }
+
+    /**
+     * Get the sequence number of the first change in the journal.
+     * @return the sequence number, 0 if the journal is empty
+     */
+    synchronized long getFirstSequence() { return this.firstSequence; }
+
+    /**
+     * Get the sequence number of the last change in the journal.
+     * @return the sequence number, 0 if the journal is empty
+     */
+    synchronized long getLastSequence() { return this.lastSequence; }
+
+    /**
+     * Get the sequence number of the last change written to the segments,
+     * and so found by {@link #sequenceAt(long)} and {@link #replay(long, long, Consumer)}.
+     * @return the sequence number, 0 if none was written
+     */
+    long getWrittenSequence() { return this.writtenSequence; }
+
+    /**
+     * Get the number of batches written.
+     * @return the number of batches
+     */
+    long getBatches() { return this.batches; }
+
+    /**
+     * Get the number of changes written.
+     * @return the number of changes
+     */
+    long getRecords() { return this.records; }
+}
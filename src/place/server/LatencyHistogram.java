@@ -0,0 +1,107 @@
+package place.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, in buckets that grow with the time. Every
+ * power of two is split into 16 buckets, so a percentile read back is never
+ * more than about 6% off, whether it is nanoseconds or seconds.
+ *
+ * Recording a time finds its bucket from the time's highest bit and adds one
+ * to it atomically, so it never locks or allocates and any number of threads
+ * can record at once. Reading a percentile adds up the buckets, which is only
+ * done when the metrics are looked at.
+ *
+ * @author Jake Waclawski
+ */
+class LatencyHistogram {
+    /** the number of bits of a time that pick its bucket within its power of two */
+    private static final int SUB_BITS = 4;
+    /** the number of buckets for every power of two */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** the number of buckets, enough for any positive long */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    /** the number of times recorded in each bucket */
+    private AtomicLongArray counts;
+    /** the longest time recorded, in nanoseconds */
+    private AtomicLong max;
+
+    /**
+     * Create an empty histogram.
+     */
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Record a time.
+     * @param nanos the time, in nanoseconds
+     */
+    void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        this.counts.incrementAndGet(bucket(nanos));
+        long max = this.max.get();
+        while(nanos > max && !this.max.compareAndSet(max, nanos)) {
+            max = this.max.get();
+        }
+    }
+
+    /**
+     * Get the bucket a time falls in.
+     * @param nanos the time, at least 0
+     * @return the bucket index
+     */
+    private static int bucket(long nanos) {
+        if(nanos < SUB_COUNT) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + (int) ((nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * Get the longest time that falls in a bucket.
+     * @param bucket the bucket index
+     * @return the time, in nanoseconds
+     */
+    private static long highest(int bucket) {
+        if(bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        return ((long) (SUB_COUNT + bucket % SUB_COUNT) << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * Get the time a share of the recorded times were no longer than.
+     * @param share the share, for example 0.99 for the 99th percentile
+     * @return the time, in nanoseconds, rounded up to its bucket, 0 if
+     * nothing was recorded yet
+     */
+    long getPercentile(double share) {
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            count += this.counts.get(i);
+        }
+        long rank = (long) Math.ceil(share * count);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS && count > 0; i++) {
+            seen += this.counts.get(i);
+            if(seen >= rank) {
+                return Math.min(highest(i), this.max.get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the longest time recorded.
+     * @return the time, in nanoseconds
+     */
+    long getMax() { return this.max.get(); }
+}
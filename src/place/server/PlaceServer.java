@@ -1,17 +1,37 @@
 package place.server;
 
+import place.MappedBoardStorage;
 import place.PlaceBoard;
 import place.PlaceException;
 import place.PlaceLogger;
 import place.PlaceTile;
+import place.UserDictionary;
+import place.network.PlaceCodec;
 import place.network.PlaceRequest;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The Place server is run on the command line as:
@@ -19,7 +39,13 @@ import java.util.ArrayList;
  * $ java PlaceServer port DIM
  *
  * Where port is the port number of the host and DIM is the square dimension
- * of the board.
+ * of the board. The server engine is chosen at startup with the place.engine
+ * system property (see {@link ServerConfig}).
+ *
+ * Several servers can share one board as a cluster. One of them is the
+ * leader and numbers every change; the others join it with the
+ * place.cluster.leader system property, pass their clients' changes on to it
+ * and apply the changes it sends back in its order.
  *
  * @author Sean Strout @ RIT CS
  * @author Jake Waclawski
@@ -29,8 +55,65 @@ public class PlaceServer {
     private static ServerSocket serverSocket;
     /** the server-side place board */
     private static PlaceBoard placeBoard;
-    /** the clients currently logged in to the server */
-    private static ArrayList<ClientHandler> clients;
+    /**
+     * the clients currently logged in to the server, by username. Iterating
+     * it never throws, even while clients log in and out.
+     */
+    private static ConcurrentHashMap<String, ClientConnection> clients;
+    /** the part of the board each client watches */
+    private static SubscriptionIndex subscriptions;
+    /** the lower levels of detail of the board, null if none are kept */
+    private static BoardPyramid pyramid;
+    /** the servers that joined this one as their cluster leader */
+    private static Set<ClientConnection> peers;
+    /** the link to this server's cluster leader, null if it is the leader or not in a cluster */
+    private static ClusterLink link;
+    /** the ticker batching tile changes, null if every change is sent right away */
+    private static BroadcastTicker ticker;
+    /** the timer ending client cool-downs */
+    private static CoolDownTimer coolDownTimer;
+    /** the counts of what the server is doing */
+    private static ServerMetrics metrics;
+    /** the limits on how many clients may be connected and waiting to log in */
+    private static AdmissionControl admission;
+    /** the limit on how often each user may change a tile */
+    private static RateLimiter<String> userLimits;
+    /** the limit on how often the users from each address may change a tile, null for no limit */
+    private static RateLimiter<InetAddress> addressLimits;
+    /** the limit on how often each user may ask for a level of detail */
+    private static RateLimiter<String> levelLimits;
+    /**
+     * the recent tile changes, also locked while a change is numbered and
+     * added to the journal, so both happen in sequence order
+     */
+    private static ChangeLog changeLog;
+    /**
+     * the locks the board is split over, by chunk of tiles. A change holds
+     * its chunk's lock from being numbered until it is on the board, so
+     * changes to the same tile are applied in sequence order while changes
+     * to tiles in other chunks are applied in parallel. The history of each
+     * tile, and the levels of detail that fit inside a chunk, are kept under
+     * the same locks
+     */
+    private static ReentrantLock[] stripes;
+    /**
+     * locked while applied changes are broadcast, so every client sees them
+     * in sequence order and a client that reconnects can resume from the
+     * last one it saw
+     */
+    private static final Object publishLock = new Object();
+    /** the single-writer pipeline tile changes go through, null if they are applied under the stripe locks */
+    private static UpdatePipeline pipeline;
+    /** the ids of every username that has logged in */
+    private static UserDictionary users;
+    /** the journal of accepted tile changes, null if there is none */
+    private static Journal journal;
+    /** the last few changes to every tile, null if none are remembered */
+    private static TileHistory tileHistory;
+    /** the snapshots and journal the board's past is rebuilt from, null if there is no journal */
+    private static BoardHistory history;
+    /** the thread the board's past is rebuilt on for clients, null if there is no journal */
+    private static ThreadPoolExecutor historyQueries;
 
     /**
      * The main method starts the server and initializes the
@@ -46,89 +129,1110 @@ public class PlaceServer {
             try {
                 int port = Integer.parseInt(args[0]);
                 int dim = Integer.parseInt(args[1]);
-                serverSocket = new ServerSocket(port);
-                placeBoard = new PlaceBoard(dim);
-                PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Server started on port: " + port);
-                connectClients();
+                metrics = new ServerMetrics();
+                if(ServerConfig.CLUSTER_LEADER == null) {
+                    openBoard(dim);
+                } else {
+                    openFollower(dim);
+                }
+                stripes = new ReentrantLock[Math.max(1, ServerConfig.LOCK_STRIPES)];
+                for(int i = 0; i < stripes.length; i++) {
+                    stripes[i] = new ReentrantLock();
+                }
+                if(ServerConfig.HISTORY_DEPTH > 0) {
+                    tileHistory = new TileHistory(dim, ServerConfig.HISTORY_DEPTH, stripes.length);
+                }
+                if(link == null) {
+                    openJournal(dim);
+                    placeBoard.setSequence(changeLog.getLastSequence());
+                }
+                if(ServerConfig.PYRAMID_LEVELS > 0) {
+                    pyramid = new BoardPyramid(placeBoard, ServerConfig.PYRAMID_LEVELS, Integer.numberOfTrailingZeros(ServerConfig.LOCK_CHUNK));
+                }
+                if(ServerConfig.UPDATES.equals("pipeline")) {
+                    pipeline = new UpdatePipeline(ServerConfig.PIPELINE_SIZE);
+                    pipeline.start();
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Applying tile changes on a single writer thread");
+                }
+                PlaceCodec.setBoardCompression(ServerConfig.BOARD_COMPRESSION);
+                clients = new ConcurrentHashMap<>();
+                peers = ConcurrentHashMap.newKeySet();
+                subscriptions = new SubscriptionIndex(dim, ServerConfig.SUBSCRIPTION_CHUNK);
+                coolDownTimer = new CoolDownTimer();
+                coolDownTimer.start();
+                admission = new AdmissionControl(ServerConfig.MAX_CONNECTIONS, ServerConfig.MAX_PENDING_LOGINS);
+                userLimits = new RateLimiter<>(ServerConfig.USER_RATE, ServerConfig.USER_BURST);
+                if(ServerConfig.ADDRESS_RATE > 0) {
+                    addressLimits = new RateLimiter<>(ServerConfig.ADDRESS_RATE, ServerConfig.ADDRESS_BURST);
+                }
+                levelLimits = new RateLimiter<>(ServerConfig.LEVEL_RATE, ServerConfig.LEVEL_BURST);
+                if(ServerConfig.BROADCAST_TICK > 0) {
+                    ticker = new BroadcastTicker(dim, ServerConfig.MAX_BATCH_SIZE);
+                    ticker.start(ServerConfig.BROADCAST_TICK);
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Broadcasting tile changes every " + ServerConfig.BROADCAST_TICK + " ms");
+                }
+                if(link != null) {
+                    link.start();
+                }
+                if(ServerConfig.METRICS_JMX) {
+                    metrics.register();
+                }
+                if(ServerConfig.METRICS_INTERVAL > 0) {
+                    metrics.start(ServerConfig.METRICS_INTERVAL);
+                }
+                if(ServerConfig.ENGINE.equals("nio")) {
+                    ReactorServer reactorServer = new ReactorServer(port, ServerConfig.REACTOR_THREADS);
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Server started on port: " + port + " with " + ServerConfig.REACTOR_THREADS + " reactor(s)");
+                    reactorServer.run();
+                } else {
+                    serverSocket = new ServerSocket(port);
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Server started on port: " + port);
+                    connectClients();
+                }
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.ERROR, PlaceServer.class.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Create the server-side board and the username dictionary. With a board
+     * file configured, both are opened from disk, created if they do not exist
+     * yet, and the board is written out again when the server shuts down. With
+     * only a journal configured, the dictionary is kept in the journal directory.
+     * @param dim the square dimension of the board
+     * @throws IOException if the board file could not be opened
+     */
+    private static void openBoard(int dim) throws IOException {
+        if(ServerConfig.BOARD_FILE == null) {
+            placeBoard = new PlaceBoard(dim);
+            if(ServerConfig.JOURNAL_DIR == null) {
+                users = new UserDictionary();
+            } else {
+                Files.createDirectories(Paths.get(ServerConfig.JOURNAL_DIR));
+                users = UserDictionary.open(Paths.get(ServerConfig.JOURNAL_DIR, "users"));
+            }
+            return;
+        }
+        placeBoard = new PlaceBoard(dim, MappedBoardStorage.open(Paths.get(ServerConfig.BOARD_FILE), dim));
+        users = UserDictionary.open(Paths.get(ServerConfig.BOARD_FILE + ".users"));
+        PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), "Opened board file " + ServerConfig.BOARD_FILE + " with " + (users.size() - 1) + " known user(s)");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                placeBoard.flush();
             } catch (IOException e) {
                 PlaceLogger.log(PlaceLogger.LogType.ERROR, PlaceServer.class.getName(), e.getMessage());
             }
+        }));
+    }
+
+    /**
+     * Create an empty board and username dictionary for a server joining a
+     * cluster, and the link to its leader. The leader fills in both once the
+     * link connects. The server keeps no board file or journal of its own;
+     * it copies the board from the leader whenever it starts.
+     * @param dim the square dimension of the board
+     */
+    private static void openFollower(int dim) {
+        if(ServerConfig.BOARD_FILE != null || ServerConfig.JOURNAL_DIR != null) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "Ignoring the board file and journal, the board is copied from the cluster leader");
         }
+        placeBoard = new PlaceBoard(dim);
+        users = new UserDictionary();
+        changeLog = new ChangeLog(ServerConfig.CHANGE_LOG_SIZE, 0);
+        link = new ClusterLink(ServerConfig.CLUSTER_LEADER, ServerConfig.CLUSTER_SECRET);
+        PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), "Joining the cluster led by " + ServerConfig.CLUSTER_LEADER);
+    }
+
+    /**
+     * Create the change log and, if one is configured, open the journal and
+     * replay it. The latest snapshot is loaded first if it is newer than the
+     * board, and changes the board then already holds are skipped, so only
+     * the journal after the snapshot, or after the board file, is applied.
+     * Every change still in the journal also refills the change log, letting
+     * clients resume across a restart.
+     * @param dim the square dimension of the board
+     * @throws IOException if the journal could not be opened or read
+     */
+    private static void openJournal(int dim) throws IOException {
+        if(ServerConfig.JOURNAL_DIR == null) {
+            changeLog = new ChangeLog(ServerConfig.CHANGE_LOG_SIZE, Math.max(placeBoard.getSequence(), System.currentTimeMillis() << 20));
+            return;
+        }
+        Path directory = Paths.get(ServerConfig.JOURNAL_DIR);
+        journal = new Journal(directory, dim, ServerConfig.JOURNAL_SYNC, ServerConfig.JOURNAL_SYNC_INTERVAL, ServerConfig.JOURNAL_SEGMENT_SIZE);
+        BoardHistory.load(directory, placeBoard);
+        long boardSequence = placeBoard.getSequence();
+        // a board that already holds changes carries on from its own numbers, so the journal stays in sequence
+        long startSequence = boardSequence > 0 ? boardSequence : System.currentTimeMillis() << 20;
+        if(journal.getLastSequence() == 0) {
+            changeLog = new ChangeLog(ServerConfig.CHANGE_LOG_SIZE, startSequence);
+        } else {
+            if(journal.getFirstSequence() > boardSequence + 1) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "The journal starts at change " + journal.getFirstSequence() + " but the board only holds changes up to " + boardSequence + ", changes in between are lost");
+            }
+            changeLog = new ChangeLog(ServerConfig.CHANGE_LOG_SIZE, journal.getFirstSequence() - 1);
+            long start = System.nanoTime();
+            long[] replayed = new long[1];
+            journal.replay(tile -> {
+                changeLog.restore(tile);
+                if(tileHistory != null) {
+                    tileHistory.add(tile, stripe(tile.getRow(), tile.getCol()));
+                }
+                if(tile.getSequence() > boardSequence) {
+                    placeBoard.setTile(tile);
+                    replayed[0]++;
+                }
+            });
+            PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), "Replayed " + replayed[0] + " of " + (journal.getLastSequence() - journal.getFirstSequence() + 1) + " change(s) from the journal in " + (System.nanoTime() - start) / 1000000 + " ms");
+            if(boardSequence > journal.getLastSequence()) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "The board is ahead of the journal, clients will not be able to resume");
+                changeLog = new ChangeLog(ServerConfig.CHANGE_LOG_SIZE, startSequence);
+            }
+        }
+        journal.continueAt(changeLog.getLastSequence() + 1);
+        if(ServerConfig.JOURNAL_SYNC.equals("always")) {
+            // changes are only broadcast once they are on disk
+            changeLog.waitForCommits();
+            journal.setCommitListener(sequence -> {
+                changeLog.committed(sequence);
+                publish();
+            });
+        }
+        journal.start();
+        history = new BoardHistory(directory, dim, journal, ServerConfig.SNAPSHOT_KEEP);
+        historyQueries = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(ServerConfig.HISTORY_QUERIES), runnable -> {
+            Thread thread = new Thread(runnable, "History");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if(ServerConfig.SNAPSHOT_INTERVAL > 0) {
+            new SnapshotWriter(directory, placeBoard, history).start(ServerConfig.SNAPSHOT_INTERVAL);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                journal.commit(true);
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.ERROR, PlaceServer.class.getName(), e.getMessage());
+            }
+        }));
     }
 
     /**
      * Spawns and starts client threads each time a new client
-     * connects to the server.
+     * connects to the server. A client the server has no room for is
+     * refused right away; everything else, even opening its streams, is
+     * left to the client's own threads.
      * @throws IOException if a network error occurs
      */
     private static void connectClients() throws IOException {
-        clients = new ArrayList<>();
+        ThreadFactory clientThreads = createClientThreadFactory();
         PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), "Waiting for clients...");
         while(true) {
             Socket clientSocket = serverSocket.accept();
+            if(!admission.tryOpen()) {
+                refuse(clientSocket);
+                continue;
+            }
             PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "New client connected, assigned number: " + clients.size());
 
-            ObjectOutputStream networkOut = new ObjectOutputStream(clientSocket.getOutputStream());
-            ObjectInputStream networkIn = new ObjectInputStream(clientSocket.getInputStream());
+            ClientHandler client = new ClientHandler(clientSocket, clients.size());
+            connected(client);
+            client.start(clientThreads);
+        }
+    }
+
+    /**
+     * Tell a client the server has no room for it and close its socket. The
+     * message is small enough to fit the socket's empty send buffer, so this
+     * never blocks.
+     * @param clientSocket the socket connected to the client
+     */
+    private static void refuse(Socket clientSocket) {
+        try (clientSocket) {
+            clientSocket.getOutputStream().write(AdmissionControl.BUSY);
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), e.getMessage());
+        }
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Refused a client from " + clientSocket.getInetAddress() + ", " + admission.getConnections() + " connected, " + admission.getPendingLogins() + " waiting to log in");
+    }
 
-            Thread t = new ClientHandler(placeBoard, networkIn, networkOut, clients.size());
-            t.start();
+    /**
+     * Start the login timeout of a newly accepted client. A client that has
+     * not logged in, or joined as a cluster server, once it runs out is
+     * disconnected, so it does not hold on to its place among the clients
+     * waiting to log in.
+     * @param client the client
+     */
+    static void connected(ClientConnection client) {
+        if(ServerConfig.LOGIN_TIMEOUT <= 0) {
+            return;
+        }
+        coolDownTimer.schedule(() -> {
+            if(!client.isAdmitted()) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " did not log in within " + ServerConfig.LOGIN_TIMEOUT + " ms, disconnecting");
+                client.disconnect();
+            }
+        }, ServerConfig.LOGIN_TIMEOUT);
+    }
+
+    /**
+     * Create the factory for client threads. The "virtual" engine runs each
+     * client on a virtual thread, which needs Java 21 or newer, and falls
+     * back to platform threads on older runtimes.
+     * @return the thread factory
+     */
+    private static ThreadFactory createClientThreadFactory() {
+        if(ServerConfig.ENGINE.equals("virtual")) {
+            try {
+                // looked up reflectively since the project still targets Java 13
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+                PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Running clients on virtual threads");
+                return factory;
+            } catch (ReflectiveOperationException e) {
+                PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "Virtual threads are not supported by this Java runtime, using platform threads");
+            }
         }
+        return Thread::new;
     }
 
     /**
      * Send a message to all clients currently connected to the server.
-     * Individually calls each client's write() method.
+     * The message is encoded only once and the same frame is handed to each
+     * client's writeFrame() method, which only queues it, so a slow client
+     * does not hold up the others.
      * @param msg the message to send
      */
-    static void sendToAll(PlaceRequest msg) {
+    static void sendToAll(PlaceRequest<?> msg) {
+        byte[] frame = PlaceCodec.encode(msg);
+        for(ClientConnection c : PlaceServer.clients.values()){
+            c.writeFrame(frame);
+        }
+    }
+
+    /**
+     * Send a message to every server that joined this one as its cluster
+     * leader, the same way as sendToAll().
+     * @param msg the message to send
+     */
+    private static void sendToPeers(PlaceRequest<?> msg) {
+        if(peers.isEmpty()) {
+            return;
+        }
+        byte[] frame = PlaceCodec.encode(msg);
+        for(ClientConnection peer : peers) {
+            peer.writeFrame(frame);
+        }
+    }
+
+    /**
+     * Handle a login request from a client. On success the client is sent its
+     * client number followed by the current board, otherwise it is sent an error.
+     * A reconnecting client that is not too far behind is sent just the changes
+     * it missed instead of the board.
+     * @param client the client logging in
+     * @param user the requested username
+     */
+    static void login(ClientConnection client, String user) {
+        int userId;
+        try {
+            // in a cluster the leader hands out the ids, and sets the owner of every change itself
+            userId = link == null ? userId(user) : 0;
+        } catch (PlaceException e) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), user + " failed to log in (" + e.getMessage() + ").");
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, e.getMessage()));
+            return;
+        }
+        client.setUsername(user);
+        if(addClient(client)) {
+            admission.admitted(client);
+            metrics.loggedIn();
+            subscriptions.watchAll(client);
+            client.setUserId(userId);
+            client.setUserBucket(userLimits.acquire(user));
+            if(addressLimits != null) {
+                client.setAddressBucket(addressLimits.acquire(client.getAddress()));
+            }
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " connected to server with username: " + user);
+            PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), user + " logged in to server");
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, client.getClientNumber()));
+            if(client.getResumeFrom() < 0 || !resume(client)) {
+                client.writeBoard();
+            }
+        } else {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), user + " failed to log in (username taken).");
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, user));
+        }
+    }
+
+    /**
+     * Handle a client that only shows part of the board. From now on it is
+     * only sent the changes inside that part. Tiles it did not watch before
+     * may have changed in the meantime, so every tile coming into view that
+     * was ever changed is sent to it now. Broadcasts are held back until
+     * then, so those tiles can not overwrite newer changes.
+     * @param client the client, already logged in
+     * @param region the top row, left column, height and width of the part
+     * @throws PlaceException if the client is not logged in, or the part is
+     * not on the board
+     */
+    static void subscribe(ClientConnection client, int[] region) throws PlaceException {
+        if(client.getUsername() == null || clients.get(client.getUsername()) != client) {
+            throw new PlaceException("Subscribed without logging in");
+        }
+        if(region[0] < 0 || region[1] < 0 || region[2] < 1 || region[3] < 1 || region[0] + region[2] > placeBoard.DIM || region[1] + region[3] > placeBoard.DIM) {
+            throw new PlaceException("Invalid region");
+        }
+        synchronized (publishLock) {
+            if(pyramid != null) {
+                pyramid.unwatch(client);
+            }
+            int[] watched = client.getRegion();
+            subscriptions.watch(client, region);
+            if(watched == null) {
+                return;
+            }
+            ArrayList<PlaceTile> missed = new ArrayList<>();
+            for(int row = region[0]; row < region[0] + region[2]; row++) {
+                for(int col = region[1]; col < region[1] + region[3]; col++) {
+                    if(placeBoard.getTime(row, col) != 0 && !SubscriptionIndex.contains(watched, row, col)) {
+                        missed.add(placeBoard.getTile(row, col));
+                    }
+                }
+            }
+            for(int from = 0; from < missed.size(); from += ServerConfig.MAX_BATCH_SIZE) {
+                PlaceTile[] batch = missed.subList(from, Math.min(missed.size(), from + ServerConfig.MAX_BATCH_SIZE)).toArray(new PlaceTile[0]);
+                client.write(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, batch));
+            }
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " watches " + region[2] + "x" + region[3] + " tiles at (" + region[0] + ", " + region[1] + "), sent " + missed.size() + " tile(s) coming into view");
+        }
+    }
+
+    /**
+     * Handle a client zoomed too far out to show every tile. It is sent the
+     * level of detail it asked for, and from then on only the changes to that
+     * level, until it subscribes to a part of the board again. Each user may
+     * only ask for a level so often, as each one is sent whole.
+     *
+     * The level's cells are copied while every lock stripe is held, but it is
+     * turned into a board and encoded after they are let go, so changes are
+     * not held up by it. The client only starts watching the level once the
+     * copy is queued, and is then sent the cells that changed in between.
+     * @param client the client, already logged in
+     * @param level the level of detail, at least 1
+     * @throws PlaceException if the client is not logged in, or there is no
+     * such level
+     */
+    static void watchLevel(ClientConnection client, int level) throws PlaceException {
+        if(client.getUsername() == null || clients.get(client.getUsername()) != client) {
+            throw new PlaceException("Asked for a level of detail without logging in");
+        }
+        if(pyramid == null) {
+            throw new PlaceException("No levels of detail are kept");
+        }
+        if(level < 1 || level > pyramid.getLevels()) {
+            throw new PlaceException("Invalid level of detail: " + level);
+        }
+        long wait = levelLimits.take(client.getUsername(), System.nanoTime());
+        if(wait != 0) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " asked for levels of detail too often");
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Level of detail refused: retry after " + toMillis(wait) + " ms"));
+            return;
+        }
+        byte[] cells;
+        long sequence;
+        synchronized (publishLock) {
+            // no change may touch the levels while they are copied
+            lockAllStripes();
+            try {
+                pyramid.unwatch(client);
+                cells = pyramid.copyLevel(level);
+                sequence = placeBoard.getSequence();
+            } finally {
+                unlockAllStripes();
+            }
+            subscriptions.watchNone(client);
+        }
+        client.writeFrame(PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.LEVEL, pyramid.toBoard(level, cells, sequence))));
+        lockAllStripes();
+        try {
+            // writing the level may have disconnected a client that fell behind
+            if(clients.get(client.getUsername()) == client) {
+                pyramid.watch(client, level, cells);
+            }
+        } finally {
+            unlockAllStripes();
+        }
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " watches level of detail " + level);
+    }
+
+    /**
+     * Handle a server joining this one as its cluster leader. It is sent every
+     * known username and then, like a reconnecting client, the changes it
+     * missed or the whole board. From then on it is sent every change made.
+     * A server that does not know the cluster secret, or any server if no
+     * secret is set, is refused and disconnected.
+     * @param peer the joining server
+     * @param from the last sequence number it holds, -1 if none
+     * @param secret the cluster secret it sent
+     */
+    static void join(ClientConnection peer, long from, String secret) {
+        if(ServerConfig.CLUSTER_SECRET == null || !MessageDigest.isEqual(ServerConfig.CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8))) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "Client " + peer.getClientNumber() + " tried to join as a cluster server " + (ServerConfig.CLUSTER_SECRET == null ? "but no cluster secret is set" : "with the wrong cluster secret"));
+            peer.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Joining refused: wrong cluster secret"));
+            peer.disconnect();
+            return;
+        }
+        synchronized (publishLock) {
+            // added first, so a username handed out from now on is sent to it on its own
+            peers.add(peer);
+            admission.admitted(peer);
+            HashMap<Integer, String> usernames = new HashMap<>();
+            for(int id = 1; id < users.size(); id++) {
+                String name = users.getName(id);
+                if(name != null) {
+                    usernames.put(id, name);
+                }
+            }
+            peer.write(new PlaceRequest<>(PlaceRequest.RequestType.USERNAME, usernames));
+            peer.setResumeFrom(from);
+            if(from < 0 || !resume(peer)) {
+                peer.writeBoard();
+            }
+        }
+        PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), "Client " + peer.getClientNumber() + " joined as a cluster server, " + peers.size() + " server(s) joined");
+    }
+
+    /**
+     * Get the id of a username, handing out a new one if needed. Servers that
+     * joined this one are sent every new username before any change owned by
+     * it.
+     * @param name the username
+     * @return the id
+     * @throws PlaceException if a new username could not be stored
+     */
+    private static int userId(String name) throws PlaceException {
+        int known = users.size();
+        int id;
+        try {
+            id = users.getId(name);
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.ERROR, PlaceServer.class.getName(), PlaceLogger.getLineNumber(), "Could not store the username " + name + ": " + e.getMessage());
+            throw new PlaceException("Username could not be stored, try again later");
+        }
+        if(id >= known) {
+            HashMap<Integer, String> usernames = new HashMap<>();
+            usernames.put(id, name);
+            sendToPeers(new PlaceRequest<>(PlaceRequest.RequestType.USERNAME, usernames));
+        }
+        return id;
+    }
+
+    /**
+     * Send a reconnecting client the changes it missed, in batches of at most
+     * the maximum batch size. Broadcasts are held back until the missed
+     * changes are queued, so they can not arrive out of order.
+     * @param client the reconnecting client, already logged in
+     * @return true if the changes were sent, false if some of them are no
+     * longer remembered and the client needs the whole board
+     */
+    private static boolean resume(ClientConnection client) {
+        synchronized (publishLock) {
+            PlaceTile[] missed = changeLog.since(client.getResumeFrom());
+            if(missed == null) {
+                PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " is too far behind to resume, sending the board");
+                return false;
+            }
+            int from = 0;
+            do {
+                PlaceTile[] batch = Arrays.copyOfRange(missed, from, Math.min(missed.length, from + ServerConfig.MAX_BATCH_SIZE));
+                client.write(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, batch));
+                from += ServerConfig.MAX_BATCH_SIZE;
+            } while(from < missed.length);
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " resumed, sent " + missed.length + " missed change(s)");
+            return true;
+        }
+    }
+
+    /**
+     * Handle a tile change request from a client. The tile is stamped with the
+     * client's user id, the current time and the next sequence number, placed
+     * on the board, added to the journal and then sent to every client, either
+     * right away or with the next broadcast tick.
+     *
+     * Each change takes a token from the rate limit of the client's username,
+     * and of its address if addresses are limited. A change that finds either
+     * one empty is refused at once with the time until it may be tried again.
+     * Either way the client is sent READY as soon as it may change another
+     * tile, right away if it still has tokens and otherwise once its
+     * cool-down is over.
+     *
+     * Only numbering the change and adding it to the journal is done under
+     * one lock for the whole board. Placing it on the board happens under
+     * the lock of its chunk, so changes in different chunks do not wait on
+     * each other. Changes are then broadcast in sequence order once every
+     * earlier change is on the board too. With the pipeline, the change is
+     * instead handed to its single writer thread. A server in a cluster
+     * passes the change on to its leader instead, and applies it once the
+     * leader sends it back.
+     * @param client the client changing the tile
+     * @param tile the tile to change
+     * @throws PlaceException if the client is not logged in, or the tile
+     * coordinates are invalid
+     */
+    static void changeTile(ClientConnection client, PlaceTile tile) throws PlaceException {
+        RateLimiter.Bucket userBucket = client.getUserBucket();
+        if(userBucket == null) {
+            throw new PlaceException("Changed a tile without logging in");
+        }
+        if(!placeBoard.isValid(tile)) {
+            throw new PlaceException("Invalid tile coordinates");
+        }
+        RateLimiter.Bucket addressBucket = client.getAddressBucket();
+        long now = System.nanoTime();
+        long wait = userBucket.take(now);
+        if(wait == 0 && addressBucket != null) {
+            wait = addressBucket.take(now);
+            if(wait != 0) {
+                userBucket.refund();
+            }
+        }
+        if(wait != 0) {
+            metrics.tileChangeRefused();
+            long retryAfter = toMillis(wait);
+            PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " changed a tile during its cool-down");
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Tile change refused: on cool-down, retry after " + retryAfter + " ms"));
+            coolDown(client, retryAfter);
+            return;
+        }
+        wait = Math.max(userBucket.untilNext(now), addressBucket == null ? 0 : addressBucket.untilNext(now));
+        if(wait == 0) {
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.READY, null));
+        } else {
+            coolDown(client, toMillis(wait));
+        }
+
+        tile.setOwner(client.getUsername());
+        tile.setOwnerId(client.getUserId());
+
+        if(link != null) {
+            if(!link.forward(tile)) {
+                client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Tile change refused: the cluster leader can not be reached"));
+            }
+            return;
+        }
+        accept(client, tile);
+    }
+
+    /**
+     * Put a client on cool-down and send it READY once it is over, unless it
+     * is cooling down already.
+     * @param client the client
+     * @param delay the length of the cool-down, in milliseconds
+     */
+    private static void coolDown(ClientConnection client, long delay) {
+        if(client.startCoolDown()) {
+            coolDownTimer.schedule(() -> {
+                client.endCoolDown();
+                client.write(new PlaceRequest<>(PlaceRequest.RequestType.READY, null));
+            }, delay);
+        }
+    }
+
+    /**
+     * Round a time up to whole milliseconds.
+     * @param nanos the time, in nanoseconds
+     * @return the time, in milliseconds
+     */
+    private static long toMillis(long nanos) {
+        return (nanos + 999_999) / 1_000_000;
+    }
+
+    /**
+     * Handle a tile change passed on by a server that joined this one. It was
+     * already checked against its client's cool-down, and is accepted like any
+     * other change, or passed on again if this server has a leader too.
+     * @param peer the server passing the change on
+     * @param tile the tile to change, carrying its owner's username
+     * @throws PlaceException if the tile coordinates are invalid, or the
+     * sender never joined
+     */
+    static void forwardTile(ClientConnection peer, PlaceTile tile) throws PlaceException {
+        if(!peers.contains(peer)) {
+            throw new PlaceException("Tile change forwarded by a server that never joined");
+        }
+        if(!placeBoard.isValid(tile)) {
+            throw new PlaceException("Invalid tile coordinates");
+        }
+        if(link != null) {
+            if(!link.forward(tile)) {
+                peer.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Tile change refused: the cluster leader can not be reached"));
+            }
+            return;
+        }
+        tile.setOwnerId(userId(tile.getOwner()));
+        accept(peer, tile);
+    }
+
+    /**
+     * Apply an accepted change and broadcast it, on this thread under the
+     * lock of its chunk or through the pipeline. The change is refused if
+     * the journal has stopped writing.
+     * @param client the client that made the change, or the server that passed it on
+     * @param tile the tile to change
+     * @throws PlaceException if the tile coordinates are invalid, or the
+     * pipeline stopped
+     */
+    private static void accept(ClientConnection client, PlaceTile tile) throws PlaceException {
+        if(journal != null && journal.hasFailed()) {
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Tile change refused: the journal can not be written"));
+            return;
+        }
+        if(pipeline != null) {
+            pipeline.submit(client, tile);
+            return;
+        }
+        ReentrantLock stripe = stripes[stripe(tile.getRow(), tile.getCol())];
+        stripe.lock();
         try {
-            for(ClientHandler c : PlaceServer.clients){
-                c.write(msg);
+            apply(client, tile);
+        } finally {
+            stripe.unlock();
+        }
+        publish();
+    }
+
+    /**
+     * Number an accepted change, stamp it with the current time, add it to
+     * the journal and place it on the board. Changes to the same tile must
+     * not be applied at the same time. The change is broadcast by the next
+     * call to {@link #publish()} after it is on the board, and with the
+     * always sync policy also in the journal.
+     * @param client the client that made the change
+     * @param tile the changed tile
+     * @throws PlaceException if the tile coordinates are invalid
+     */
+    static void apply(ClientConnection client, PlaceTile tile) throws PlaceException {
+        if(!placeBoard.isValid(tile)) {
+            throw new PlaceException("Invalid tile coordinates");
+        }
+        long sequence;
+        synchronized (changeLog) {
+            // stamped in sequence order, so the journal can be searched by time
+            tile.setTime(new Date().getTime());
+            sequence = changeLog.append(tile);
+            if(journal != null) {
+                journal.append(tile);
+            }
+        }
+        updateTile(tile);
+        synchronized (changeLog) {
+            placeBoard.setSequence(changeLog.applied(sequence));
+        }
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " updating: " + tile);
+    }
+
+    /**
+     * Broadcast every change that is on the board, and with the always sync
+     * policy in the journal, and has not been broadcast yet, in sequence
+     * order. This is the only place changes made on this server are
+     * broadcast from, so clients resuming or subscribing under the same lock
+     * never miss one or see one out of order.
+     */
+    static void publish() {
+        synchronized (publishLock) {
+            for(PlaceTile applied : changeLog.unpublished()) {
+                broadcast(applied);
+            }
+        }
+    }
+
+    /**
+     * Apply changes sent by the cluster leader, in its order, and broadcast
+     * them to this server's clients and to any server that joined it. Changes
+     * the board already holds are skipped.
+     * @param tiles the changed tiles, numbered by the leader
+     */
+    static void replicate(PlaceTile[] tiles) {
+        synchronized (publishLock) {
+            for(PlaceTile tile : tiles) {
+                if(tile.getSequence() <= placeBoard.getSequence()) {
+                    continue;
+                }
+                try {
+                    updateTile(tile);
+                } catch (PlaceException e) {
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), "Skipping change " + tile.getSequence() + " from the cluster leader: " + e.getMessage());
+                    continue;
+                }
+                changeLog.restore(tile);
+                placeBoard.setSequence(tile.getSequence());
+                broadcast(tile);
+            }
+        }
+    }
+
+    /**
+     * Replace the board with the cluster leader's, when joining it or when
+     * too many changes were missed to catch up. Every client is sent the new
+     * board, and clients can only resume from changes made after it. The
+     * history of every tile starts over too, as the changes it holds were
+     * made to the old board.
+     * @param board the leader's board
+     */
+    static void replicateBoard(PlaceBoard board) {
+        // made before taking the locks, as clearing a large board takes a while
+        TileHistory emptyHistory = tileHistory == null ? null : new TileHistory(board.DIM, ServerConfig.HISTORY_DEPTH, stripes.length);
+        synchronized (publishLock) {
+            lockAllStripes();
+            try {
+                for(int row = 0; row < board.DIM; row++) {
+                    for(int col = 0; col < board.DIM; col++) {
+                        placeBoard.setTile(board.getTile(row, col));
+                    }
+                }
+                placeBoard.setSequence(board.getSequence());
+                changeLog = new ChangeLog(ServerConfig.CHANGE_LOG_SIZE, board.getSequence());
+                tileHistory = emptyHistory;
+                if(pyramid != null) {
+                    pyramid.rebuild();
+                }
+            } finally {
+                unlockAllStripes();
+            }
+            sendToAll(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, placeBoard));
+            sendToPeers(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, placeBoard));
+        }
+        PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), "Copied the board from the cluster leader at change " + board.getSequence());
+    }
+
+    /**
+     * Learn usernames handed out by the cluster leader, and pass them on to
+     * any server that joined this one.
+     * @param usernames the usernames, by user id
+     */
+    static void replicateUsernames(Map<?, ?> usernames) {
+        for(Map.Entry<?, ?> entry : usernames.entrySet()) {
+            users.put((Integer) entry.getKey(), (String) entry.getValue());
+        }
+        sendToPeers(new PlaceRequest<>(PlaceRequest.RequestType.USERNAME, new HashMap<>(usernames)));
+    }
+
+    /**
+     * Get the lock stripe of a tile. Neighbouring chunks get different
+     * stripes, so changes clustered in one area still spread over the locks.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the index of the stripe
+     */
+    private static int stripe(int row, int col) {
+        int chunks = (placeBoard.DIM + ServerConfig.LOCK_CHUNK - 1) / ServerConfig.LOCK_CHUNK;
+        return ((row / ServerConfig.LOCK_CHUNK) * chunks + col / ServerConfig.LOCK_CHUNK) % stripes.length;
+    }
+
+    /**
+     * Take every lock stripe, in order, so no tile changes until they are
+     * released again. Only for rare work on the whole board.
+     */
+    private static void lockAllStripes() {
+        for(ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+    }
+
+    /**
+     * Release every lock stripe taken by {@link #lockAllStripes()}.
+     */
+    private static void unlockAllStripes() {
+        for(int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Send an accepted tile change to every client watching it, either right
+     * away or with the next broadcast tick. Servers that joined this one are sent
+     * it right away, since they need every change and not just the last one
+     * to each tile in a tick.
+     * @param tile the changed tile
+     */
+    private static void broadcast(PlaceTile tile) {
+        sendToPeers(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+        if(ticker != null) {
+            ticker.add(tile);
+        } else {
+            subscriptions.send(tile);
+        }
+    }
+
+    /**
+     * Send a batch of changes collected by the broadcast ticker to every
+     * client watching any of them. Like a broadcast from publish(), it is
+     * sent under the publish lock, so a client changing what it watches is
+     * in the index either before or after, never in between.
+     * @param tiles the changed tiles
+     */
+    static void broadcastBatch(PlaceTile[] tiles) {
+        synchronized (publishLock) {
+            subscriptions.send(tiles);
+        }
+    }
+
+    /**
+     * Handle a username lookup from a logged in client. The client is sent
+     * the username with the requested id, or an error if no username has
+     * that id.
+     * @param client the client looking up the username
+     * @param userId the user id
+     * @throws PlaceException if the client is not logged in
+     */
+    static void lookUpUsername(ClientConnection client, int userId) throws PlaceException {
+        if(client.getUsername() == null || clients.get(client.getUsername()) != client) {
+            throw new PlaceException("Looked up a username without logging in");
+        }
+        String name = users.getName(userId);
+        if(name == null) {
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Unknown user id: " + userId));
+        } else {
+            HashMap<Integer, String> usernames = new HashMap<>();
+            usernames.put(userId, name);
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.USERNAME, usernames));
+        }
+    }
+
+    /**
+     * Handle a request from a logged in client for the recent changes to a
+     * tile. The client is sent the changes newest first, or just the tile as
+     * it is now if none are remembered.
+     * @param client the client asking
+     * @param tile the tile, only its row and column are used
+     * @throws PlaceException if the client is not logged in, or the tile
+     * coordinates are invalid
+     */
+    static void lookUpHistory(ClientConnection client, PlaceTile tile) throws PlaceException {
+        if(client.getUsername() == null || clients.get(client.getUsername()) != client) {
+            throw new PlaceException("Asked for a tile's history without logging in");
+        }
+        if(!placeBoard.isValid(tile)) {
+            throw new PlaceException("Invalid tile coordinates");
+        }
+        PlaceTile[] changes = new PlaceTile[0];
+        if(tileHistory != null) {
+            int index = stripe(tile.getRow(), tile.getCol());
+            stripes[index].lock();
+            try {
+                changes = tileHistory.get(tile.getRow(), tile.getCol(), index);
+            } finally {
+                stripes[index].unlock();
             }
-        } catch (Exception e) {
-            PlaceLogger.log(PlaceLogger.LogType.WARN, PlaceServer.class.getName(), PlaceLogger.getLineNumber(), e.toString());
         }
+        if(changes.length == 0) {
+            changes = new PlaceTile[] { placeBoard.getTile(tile.getRow(), tile.getCol()) };
+        }
+        client.write(new PlaceRequest<>(PlaceRequest.RequestType.HISTORY, changes));
+    }
+
+    /**
+     * Rebuild the whole board as it was at a time.
+     * @param time the time, in milliseconds since the epoch
+     * @return the board, holding every change made up to the time
+     * @throws PlaceException if no history is kept, or it does not go back
+     * that far
+     * @throws IOException if the history could not be read
+     */
+    static PlaceBoard getBoardAt(long time) throws PlaceException, IOException {
+        if(history == null) {
+            throw new PlaceException("No history is kept");
+        }
+        return history.boardAt(time);
+    }
+
+    /**
+     * Rebuild a rectangle of the board as it was at a time.
+     * @param time the time, in milliseconds since the epoch
+     * @param row the top row of the rectangle
+     * @param col the left column of the rectangle
+     * @param rows the height of the rectangle
+     * @param cols the width of the rectangle
+     * @return the tiles in the rectangle, indexed by row and then column
+     * relative to its corner
+     * @throws PlaceException if no history is kept, it does not go back that
+     * far, or the rectangle is not on the board
+     * @throws IOException if the history could not be read
+     */
+    static PlaceTile[][] getRegionAt(long time, int row, int col, int rows, int cols) throws PlaceException, IOException {
+        if(history == null) {
+            throw new PlaceException("No history is kept");
+        }
+        return history.regionAt(time, row, col, rows, cols);
     }
 
     /**
-     * Attempt to update a tile on the server-side place board.
+     * Handle a request from a logged in client for the board as it was at a
+     * time. Rebuilding it reads a snapshot and part of the journal, so it is
+     * done on the history thread and not the client's. The client is later
+     * sent the rebuilt board, or an error if it could not be rebuilt or too
+     * many requests are already waiting.
+     * @param client the client asking
+     * @param time the time, in milliseconds since the epoch
+     * @throws PlaceException if the client is not logged in
+     */
+    static void lookUpBoard(ClientConnection client, long time) throws PlaceException {
+        if(client.getUsername() == null || clients.get(client.getUsername()) != client) {
+            throw new PlaceException("Asked for the board at a time without logging in");
+        }
+        if(historyQueries == null) {
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "No history is kept"));
+            return;
+        }
+        try {
+            historyQueries.execute(() -> {
+                try {
+                    client.write(new PlaceRequest<>(PlaceRequest.RequestType.BOARD_AT, getBoardAt(time)));
+                } catch (PlaceException e) {
+                    client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, e.getMessage()));
+                } catch (IOException e) {
+                    PlaceLogger.log(PlaceLogger.LogType.ERROR, PlaceServer.class.getName(), "Could not rebuild the board at " + time + ": " + e.getMessage());
+                    client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Could not rebuild the board"));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            client.write(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Server busy, try again later"));
+        }
+    }
+
+    /**
+     * Attempt to update a tile on the server-side place board. The tile, its
+     * history and the levels of detail above it are updated under the lock
+     * of its stripe, which a change applied on a client thread already holds.
      * @param tile the tile to update
      * @throws PlaceException if the tile coordinates are invalid
      */
     static void updateTile(PlaceTile tile) throws PlaceException {
         if(placeBoard.isValid(tile)) {
-            placeBoard.setTile(tile);
+            long start = System.nanoTime();
+            int index = stripe(tile.getRow(), tile.getCol());
+            stripes[index].lock();
+            try {
+                placeBoard.setTile(tile);
+                if(tileHistory != null) {
+                    tileHistory.add(tile, index);
+                }
+                if(pyramid != null) {
+                    pyramid.update(tile.getRow(), tile.getCol());
+                }
+            } finally {
+                stripes[index].unlock();
+            }
+            metrics.tileChanged(System.nanoTime() - start);
         } else {
             throw new PlaceException("Invalid tile coordinates");
         }
     }
 
     /**
-     * Add a client to the list of clients. Only adds the client if its username
+     * Add a client to the clients. Only adds the client if its username
      * is not already currently taken.
      * @param client the client to add
      * @return if the client was able to be added
      */
-    static boolean addClient(ClientHandler client) {
-        for(ClientHandler c : clients){
-            if(c.getUsername().equals(client.getUsername())){
-                return false;
-            }
+    static boolean addClient(ClientConnection client) {
+        if(clients.putIfAbsent(client.getUsername(), client) != null) {
+            return false;
         }
-        clients.add(client);
-        StringBuilder msg = new StringBuilder(clients.size() + " connected user(s): [ ");
-        for(ClientHandler c : clients) { msg.append(c.getUsername()).append(" , "); }
-        msg.append("]");
-        PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), msg.toString());
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, PlaceServer.class.getName(), clients.size() + " connected user(s)");
         return true;
     }
 
     /**
-     * Remove a client from the list of clients.
+     * Remove a client from the clients, once its connection is closed. Must
+     * be called exactly once for every client connection. Does not remove a
+     * username that belongs to another client, and releases the client's
+     * rate limit buckets. A server that joined this one is no longer sent
+     * changes.
      * @param client the client to remove
      */
-    static void removeClient(ClientHandler client) {
-        clients.remove(client);
+    static void removeClient(ClientConnection client) {
+        admission.closed(client);
+        if(client.getUsername() != null && clients.remove(client.getUsername(), client)) {
+            subscriptions.remove(client);
+            if(pyramid != null) {
+                pyramid.unwatch(client);
+            }
+            if(client.getUserBucket() != null) {
+                userLimits.release(client.getUsername());
+            }
+            if(client.getAddressBucket() != null) {
+                addressLimits.release(client.getAddress());
+            }
+        }
+        if(peers.remove(client)) {
+            PlaceLogger.log(PlaceLogger.LogType.INFO, PlaceServer.class.getName(), "Client " + client.getClientNumber() + " left the cluster, " + peers.size() + " server(s) joined");
+        }
+    }
+
+    /**
+     * Get the server-side place board.
+     * @return the board
+     */
+    static PlaceBoard getBoard() {
+        return placeBoard;
+    }
+
+    /**
+     * Get the ticker batching tile changes.
+     * @return the ticker, null if broadcast ticks are turned off
+     */
+    static BroadcastTicker getTicker() {
+        return ticker;
+    }
+
+    /**
+     * Get the index of which part of the board each client watches.
+     * @return the index
+     */
+    static SubscriptionIndex getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Get the counts of what the server is doing.
+     * @return the metrics
+     */
+    static ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the clients currently logged in to the server.
+     * @return the clients, which can be iterated while clients log in and out
+     */
+    static Collection<ClientConnection> getClients() {
+        return clients.values();
+    }
+
+    /**
+     * Get the single-writer pipeline tile changes go through.
+     * @return the pipeline, null if changes are applied under the stripe locks
+     */
+    static UpdatePipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Get the limits on how many clients may be connected and waiting to log in.
+     * @return the admission control
+     */
+    static AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Get the number of clients currently logged in to the server.
+     * @return the number of clients
+     */
+    static int getClientCount() {
+        return clients.size();
     }
 }
\ No newline at end of file
@@ -0,0 +1,196 @@
+package place.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often tile changes are accepted, with a token bucket for every
+ * key, such as a username or an address. A bucket holds up to a burst of
+ * tokens and gains them back at a steady rate; every change takes one.
+ *
+ * Each bucket is kept as the single time at which it would be full again,
+ * the generic cell rate algorithm, so taking a token is one compare and set
+ * and never allocates. Buckets are acquired once, when a client logs in,
+ * and kept on its connection until it is released. They outlive the
+ * connection, so logging in again does not refill them, but a bucket no
+ * connection holds is forgotten once it is full again, as a new one would
+ * be no different. Forgotten buckets are swept out whenever the number of
+ * buckets has doubled since the last sweep, so the buckets of users who
+ * have left do not pile up.
+ *
+ * @param <K> the type of key
+ *
+ * @author Jake Waclawski
+ */
+class RateLimiter<K> {
+    /** the fewest buckets a sweep is made at */
+    private static final int MIN_SWEEP = 1024;
+
+    /**
+     * The token bucket of a single key.
+     */
+    static class Bucket {
+        /** the time it takes to gain back one token, in nanoseconds */
+        private final long interval;
+        /** how far ahead of now the bucket may be emptied, in nanoseconds */
+        private final long tolerance;
+        /** the time at which the bucket will be full again, in nanoseconds */
+        private final AtomicLong full;
+        /** the number of connections holding the bucket, only changed while the map locks its key */
+        private int holders;
+
+        /**
+         * Create a full bucket.
+         * @param interval the time it takes to gain back one token, in nanoseconds
+         * @param tolerance how far ahead of now the bucket may be emptied, in nanoseconds
+         */
+        Bucket(long interval, long tolerance) {
+            this.interval = interval;
+            this.tolerance = tolerance;
+            this.full = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Take a token from the bucket, if it has one.
+         * @param now the current time, from System.nanoTime()
+         * @return 0 if a token was taken, otherwise the time until one will
+         * be there, in nanoseconds
+         */
+        long take(long now) {
+            while(true) {
+                long full = this.full.get();
+                long from = Math.max(full, now);
+                if(from - now > this.tolerance) {
+                    return from - now - this.tolerance;
+                }
+                if(this.full.compareAndSet(full, from + this.interval)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Put back a token taken for a change that was refused after all.
+         */
+        void refund() {
+            this.full.addAndGet(-this.interval);
+        }
+
+        /**
+         * Get the time until the bucket will have a token.
+         * @param now the current time, from System.nanoTime()
+         * @return the time, in nanoseconds, 0 if it has one now
+         */
+        long untilNext(long now) {
+            return Math.max(0, this.full.get() - now - this.tolerance);
+        }
+
+        /**
+         * Check whether the bucket can be forgotten, as no connection holds
+         * it and it is full again.
+         * @param now the current time, from System.nanoTime()
+         * @return whether it can be forgotten
+         */
+        private boolean unused(long now) {
+            return this.holders == 0 && this.full.get() - now <= 0;
+        }
+    }
+
+    /** the time it takes a bucket to gain back one token, in nanoseconds */
+    private long interval;
+    /** how far ahead of now a bucket may be emptied, in nanoseconds */
+    private long tolerance;
+    /** the bucket of every key seen that is held or not yet full again */
+    private ConcurrentHashMap<K, Bucket> buckets;
+    /** the number of buckets at which the next sweep is made */
+    private volatile int sweepAt;
+    /** whether a thread is sweeping */
+    private AtomicBoolean sweeping;
+
+    /**
+     * Create a limiter that has no buckets yet.
+     * @param rate the number of tokens a bucket gains back every second
+     * @param burst the number of tokens a bucket holds
+     */
+    RateLimiter(double rate, int burst) {
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.tolerance = this.interval * (Math.max(1, burst) - 1);
+        this.buckets = new ConcurrentHashMap<>();
+        this.sweepAt = MIN_SWEEP;
+        this.sweeping = new AtomicBoolean();
+    }
+
+    /**
+     * Get the bucket of a key to keep on a connection, creating a full one if
+     * it has none yet. It must be released once the connection is closed.
+     * @param key the key
+     * @return the bucket
+     */
+    Bucket acquire(K key) {
+        Bucket bucket = this.buckets.compute(key, (k, held) -> {
+            if(held == null) {
+                held = new Bucket(this.interval, this.tolerance);
+            }
+            held.holders++;
+            return held;
+        });
+        sweepIfGrown();
+        return bucket;
+    }
+
+    /**
+     * Let go of a bucket acquired for a connection that is now closed. It is
+     * forgotten right away if no other connection holds it and it is full.
+     * @param key the key the bucket was acquired with
+     */
+    void release(K key) {
+        long now = System.nanoTime();
+        this.buckets.computeIfPresent(key, (k, held) -> {
+            held.holders--;
+            return held.unused(now) ? null : held;
+        });
+    }
+
+    /**
+     * Take a token from the bucket of a key, for a request that does not keep
+     * the bucket, creating a full one if it has none yet.
+     * @param key the key
+     * @param now the current time, from System.nanoTime()
+     * @return 0 if a token was taken, otherwise the time until one will be
+     * there, in nanoseconds
+     */
+    long take(K key, long now) {
+        long[] wait = new long[1];
+        this.buckets.compute(key, (k, held) -> {
+            if(held == null) {
+                held = new Bucket(this.interval, this.tolerance);
+            }
+            wait[0] = held.take(now);
+            return held;
+        });
+        sweepIfGrown();
+        return wait[0];
+    }
+
+    /**
+     * Forget every bucket that is no longer needed, if the number of buckets
+     * has doubled since the last sweep. Sweeping is skipped while another
+     * thread is at it.
+     */
+    private void sweepIfGrown() {
+        if(this.buckets.size() < this.sweepAt || !this.sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            for(K key : this.buckets.keySet()) {
+                this.buckets.computeIfPresent(key, (k, held) -> held.unused(now) ? null : held);
+            }
+            this.sweepAt = Math.max(MIN_SWEEP, 2 * this.buckets.size());
+        } finally {
+            this.sweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package place.server;
+
+import place.PlaceLogger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A reactor thread of the non-blocking server engine. Owns a selector and
+ * does all reading and writing for the clients registered with it.
+ *
+ * @author Jake Waclawski
+ */
+class Reactor extends Thread {
+    /** the selector multiplexing this reactor's clients */
+    private Selector selector;
+    /** newly accepted channels waiting to be registered with the selector */
+    private Queue<ReactorConnection> pendingConnections;
+    /** connections with outgoing messages waiting to be written */
+    private Queue<ReactorConnection> pendingWrites;
+    /** connections other threads asked to close */
+    private Queue<ReactorConnection> pendingCloses;
+    /** the threads boards are encoded on for this reactor's clients */
+    private Executor encoder;
+
+    /**
+     * Create a new reactor.
+     * @param number the reactor's number, used to name its thread
+     * @param encoder the threads boards are encoded on for the reactor's
+     * clients
+     * @throws IOException if the selector can not be opened
+     */
+    Reactor(int number, Executor encoder) throws IOException {
+        super("Reactor-" + number);
+        this.encoder = encoder;
+        this.selector = Selector.open();
+        this.pendingConnections = new ConcurrentLinkedQueue<>();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.pendingCloses = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Hand a newly accepted client channel to this reactor. Safe to call from
+     * any thread.
+     * @param channel the non-blocking client channel
+     * @param clientNumber the client's number
+     */
+    void register(SocketChannel channel, int clientNumber) {
+        ReactorConnection connection = new ReactorConnection(this, channel, clientNumber);
+        PlaceServer.connected(connection);
+        this.pendingConnections.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Ask this reactor to write out a connection's queued messages. Safe to
+     * call from any thread.
+     * @param connection the connection with messages to write
+     */
+    void flushLater(ReactorConnection connection) {
+        this.pendingWrites.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Ask this reactor to close a connection. Safe to call from any thread;
+     * closing it on the reactor thread means its key is never cancelled
+     * while the reactor is using it.
+     * @param connection the connection to close
+     */
+    void closeLater(ReactorConnection connection) {
+        this.pendingCloses.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Get the threads boards are encoded on for this reactor's clients.
+     * @return the threads
+     */
+    Executor getEncoder() { return this.encoder; }
+
+    /**
+     * Runs the reactor. Waits for channels to become readable or writable and
+     * hands them to their connections. A connection that fails in any way is
+     * closed on its own, and the reactor carries on with the others.
+     */
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                this.selector.select();
+
+                ReactorConnection connection;
+                while((connection = this.pendingCloses.poll()) != null) {
+                    connection.close();
+                }
+                while((connection = this.pendingConnections.poll()) != null) {
+                    connection.register(this.selector);
+                }
+                while((connection = this.pendingWrites.poll()) != null) {
+                    try {
+                        connection.flush();
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        failed(connection, e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (ReactorConnection) key.attachment();
+                    try {
+                        if(key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        failed(connection, e);
+                    }
+                }
+            } catch (IOException e) {
+                PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close a connection that failed while it was being read or written.
+     * @param connection the connection
+     * @param e what went wrong
+     */
+    private void failed(ReactorConnection connection, Throwable e) {
+        PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + connection.getClientNumber() + " failed, disconnecting: " + e);
+        connection.close();
+    }
+}
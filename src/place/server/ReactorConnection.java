@@ -0,0 +1,254 @@
+package place.server;
+
+import place.PlaceException;
+import place.PlaceLogger;
+import place.PlaceTile;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents a client handled by a {@link Reactor}. Collects incoming bytes
+ * until whole frames have arrived and writes queued frames whenever the
+ * channel can take them. Except for {@link #write(PlaceRequest)} and
+ * {@link #disconnect()}, every method is only called from the reactor thread,
+ * and a disconnect from any other thread is handed to the reactor too.
+ *
+ * @author Jake Waclawski
+ */
+class ReactorConnection extends ClientConnection {
+    /** the starting size of the incoming buffer, grown as larger frames arrive */
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    /** the reactor handling this connection */
+    private Reactor reactor;
+    /** the channel connected to the client */
+    private SocketChannel channel;
+    /** the channel's registration with the reactor's selector */
+    private SelectionKey key;
+    /** the bytes read from the client that do not yet form a whole frame */
+    private ByteBuffer networkIn;
+    /** the part of the current frame still to be written to the client, null if there is none */
+    private ByteBuffer networkOut;
+    /** the board being encoded for the client off the reactor thread, null if there is none */
+    private CompletableFuture<byte[]> board;
+    /** whether a flush has already been requested from the reactor */
+    private AtomicBoolean flushRequested;
+    /** whether the connection has been closed */
+    private AtomicBoolean closed;
+    /** whether the reactor has already been asked to close the connection */
+    private AtomicBoolean closeRequested;
+
+    /**
+     * Create a new connection to a client.
+     * @param reactor the reactor handling the connection
+     * @param channel the non-blocking client channel
+     * @param clientNumber the client's number
+     */
+    ReactorConnection(Reactor reactor, SocketChannel channel, int clientNumber) {
+        super(clientNumber, channel.socket().getInetAddress());
+        this.reactor = reactor;
+        this.channel = channel;
+        this.networkIn = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.flushRequested = new AtomicBoolean(false);
+        this.closed = new AtomicBoolean(false);
+        this.closeRequested = new AtomicBoolean(false);
+    }
+
+    /**
+     * Register the channel with the reactor's selector for reading.
+     * @param selector the selector
+     */
+    void register(Selector selector) {
+        try {
+            this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            close();
+        }
+    }
+
+    /**
+     * Read whatever the client has sent and handle every whole frame.
+     */
+    void read() {
+        try {
+            int read = this.channel.read(this.networkIn);
+            if(read < 0) {
+                close();
+                return;
+            }
+            PlaceServer.getMetrics().received(read);
+            this.networkIn.flip();
+            while(!this.closed.get() && this.networkIn.remaining() >= PlaceCodec.HEADER_SIZE) {
+                int start = this.networkIn.position();
+                int length = this.networkIn.getInt(start);
+                checkLength(length);
+                if(this.networkIn.remaining() < PlaceCodec.HEADER_SIZE + length) {
+                    if(this.networkIn.capacity() < PlaceCodec.HEADER_SIZE + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(PlaceCodec.HEADER_SIZE + length);
+                        larger.put(this.networkIn);
+                        larger.flip();
+                        this.networkIn = larger;
+                    }
+                    break;
+                }
+                this.networkIn.position(start + PlaceCodec.HEADER_SIZE + length);
+                handle(PlaceCodec.decodeFromClient(this.networkIn.array(), start + PlaceCodec.HEADER_SIZE, length));
+            }
+            if(this.closed.get()) {
+                // a request closed the connection, nothing after it may be handled
+                return;
+            }
+            this.networkIn.compact();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handle a single message from the client.
+     * @param request the message
+     */
+    private void handle(PlaceRequest<?> request) {
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.getClientNumber() + " " + request.toString());
+        try {
+            switch (request.getType()) {
+                case LOGIN:
+                    PlaceServer.login(this, (String) request.getData());
+                    break;
+                case CHANGE_TILE:
+                    PlaceServer.changeTile(this, (PlaceTile) request.getData());
+                    break;
+                case RESUME:
+                    setResumeFrom((Long) request.getData());
+                    break;
+                case GET_USERNAME:
+                    PlaceServer.lookUpUsername(this, (Integer) request.getData());
+                    break;
+                case GET_BOARD_AT:
+                    PlaceServer.lookUpBoard(this, (Long) request.getData());
+                    break;
+                case GET_HISTORY:
+                    PlaceServer.lookUpHistory(this, (PlaceTile) request.getData());
+                    break;
+                case REPLICATE:
+                    Object[] join = (Object[]) request.getData();
+                    PlaceServer.join(this, (Long) join[0], (String) join[1]);
+                    break;
+                case FORWARD_TILE:
+                    PlaceServer.forwardTile(this, (PlaceTile) request.getData());
+                    break;
+                case SUBSCRIBE:
+                    PlaceServer.subscribe(this, (int[]) request.getData());
+                    break;
+                case GET_LEVEL:
+                    PlaceServer.watchLevel(this, (Integer) request.getData());
+                    break;
+                default:
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " : Unexpected type: " + request.getType());
+                    break;
+            }
+        } catch (PlaceException e) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ask the reactor to write out the queued frames. Safe to call from
+     * any thread.
+     */
+    @Override
+    void framesQueued() {
+        if(this.flushRequested.compareAndSet(false, true)) {
+            this.reactor.flushLater(this);
+        }
+    }
+
+    /**
+     * Write as many queued frames as the channel will take. If the channel
+     * fills up, wait for the selector to report it writable again. The
+     * board is encoded on one of the reactor's encoder threads, and writing
+     * carries on once it is ready, so a large board never holds up the
+     * reactor's other clients.
+     */
+    void flush() {
+        this.flushRequested.set(false);
+        if(this.key == null || !this.key.isValid()) {
+            return;
+        }
+        try {
+            while(true) {
+                if(this.networkOut == null && this.board != null) {
+                    if(!this.board.isDone()) {
+                        break;
+                    }
+                    this.networkOut = ByteBuffer.wrap(this.board.join());
+                    this.board = null;
+                }
+                if(this.networkOut == null) {
+                    byte[] frame = nextFrame();
+                    if(frame == null) {
+                        break;
+                    }
+                    if(frame == BOARD_FRAME) {
+                        this.board = CompletableFuture.supplyAsync(ClientConnection::encodeBoard, this.reactor.getEncoder());
+                        this.board.whenComplete((encoded, e) -> framesQueued());
+                        continue;
+                    }
+                    this.networkOut = ByteBuffer.wrap(frame);
+                }
+                PlaceServer.getMetrics().sent(this.channel.write(this.networkOut));
+                if(this.networkOut.hasRemaining()) {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.networkOut = null;
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Close the connection. Safe to call from any thread; unless called on
+     * the reactor thread, the reactor closes it the next time it wakes up.
+     */
+    @Override
+    void disconnect() {
+        if(Thread.currentThread() == this.reactor) {
+            close();
+        } else if(this.closeRequested.compareAndSet(false, true)) {
+            this.reactor.closeLater(this);
+        }
+    }
+
+    /**
+     * Close the connection and log the client out of the server. Only called
+     * from the reactor thread.
+     */
+    void close() {
+        if(!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        if(this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Client " + this.getClientNumber() + " : " + e.getMessage());
+        }
+        clearFrames();
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Client " + this.getClientNumber() + " disconnected from server");
+        PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), this.getUsername() + " logged out of server");
+        PlaceServer.removeClient(this);
+    }
+}
@@ -0,0 +1,89 @@
+package place.server;
+
+import place.PlaceLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The non-blocking server engine. Instead of a thread per client, every
+ * client socket is handed to one of a small number of {@link Reactor}
+ * threads, each of which multiplexes many clients with a selector.
+ *
+ * @author Jake Waclawski
+ */
+class ReactorServer {
+    /** the server socket channel clients connect to */
+    private ServerSocketChannel serverChannel;
+    /** the reactor threads that handle the client channels */
+    private Reactor[] reactors;
+    /** the threads encoding boards for the reactors, so a large board never holds up a reactor */
+    private ExecutorService encoder;
+
+    /**
+     * Open the server socket and create the reactors.
+     * @param port the port to listen on
+     * @param reactorCount the number of reactor threads
+     * @throws IOException if the server socket or a selector can not be opened
+     */
+    ReactorServer(int port, int reactorCount) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        this.encoder = Executors.newFixedThreadPool(this.reactors.length, runnable -> {
+            Thread thread = new Thread(runnable, "Board encoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for(int i = 0; i < this.reactors.length; i++) {
+            this.reactors[i] = new Reactor(i, this.encoder);
+        }
+    }
+
+    /**
+     * Start the reactors and then accept clients forever, handing each new
+     * client to the reactors in turn. A client the server has no room for is
+     * refused right away.
+     * @throws IOException if a network error occurs
+     */
+    void run() throws IOException {
+        for(Reactor reactor : this.reactors) {
+            reactor.start();
+        }
+        PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), "Waiting for clients...");
+        int next = 0;
+        while(true) {
+            SocketChannel channel = this.serverChannel.accept();
+            channel.configureBlocking(false);
+            if(!PlaceServer.getAdmission().tryOpen()) {
+                refuse(channel);
+                continue;
+            }
+            channel.socket().setTcpNoDelay(true);
+            int clientNumber = PlaceServer.getClientCount();
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "New client connected, assigned number: " + clientNumber);
+            this.reactors[next].register(channel, clientNumber);
+            next = (next + 1) % this.reactors.length;
+        }
+    }
+
+    /**
+     * Tell a client the server has no room for it and close its channel. The
+     * message is small enough to fit the channel's empty send buffer, so
+     * this never blocks.
+     * @param channel the non-blocking client channel
+     */
+    private void refuse(SocketChannel channel) {
+        try (channel) {
+            channel.write(ByteBuffer.wrap(AdmissionControl.BUSY));
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), e.getMessage());
+        }
+        PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Refused a client from " + channel.socket().getInetAddress() + ", " + PlaceServer.getAdmission().getConnections() + " connected, " + PlaceServer.getAdmission().getPendingLogins() + " waiting to log in");
+    }
+}
@@ -0,0 +1,114 @@
+package place.server;
+
+/**
+ * The tunable settings of the place server. Each setting is read once from
+ * a system property when the server starts, for example:
+ *
+ * $ java -Dplace.engine=nio PlaceServer port DIM
+ *
+ * @author Jake Waclawski
+ */
+class ServerConfig {
+    /**
+     * the server engine, "thread" for a platform thread per client, "virtual"
+     * for a virtual thread per client or "nio" for selector reactors
+     */
+    static final String ENGINE = System.getProperty("place.engine", "thread");
+    /** the number of reactor threads used by the nio engine */
+    static final int REACTOR_THREADS = Integer.getInteger("place.reactors", Runtime.getRuntime().availableProcessors());
+    /** the number of messages that may wait to be written to a single client */
+    static final int OUTGOING_QUEUE_SIZE = Integer.getInteger("place.outgoing.size", 1024);
+    /**
+     * what to do with a client whose outgoing queue is full, "disconnect" to
+     * drop it or "resync" to replace its queue with the current board
+     */
+    static final String SLOW_CLIENT_POLICY = System.getProperty("place.outgoing.policy", "disconnect");
+    /** the length of a broadcast tick in milliseconds, 0 to send every tile change right away */
+    static final int BROADCAST_TICK = Integer.getInteger("place.tick", 0);
+    /** the largest number of tile changes sent to a client in a single batch */
+    static final int MAX_BATCH_SIZE = Integer.getInteger("place.tick.batch", 1024);
+    /** whether the board is Deflate compressed when it is sent to a client */
+    static final boolean BOARD_COMPRESSION = Boolean.parseBoolean(System.getProperty("place.board.deflate", "true"));
+    /**
+     * the file the board is memory-mapped from, kept between runs together
+     * with a ".users" file holding the usernames, null to keep the board on
+     * the heap and start with a fresh one every run
+     */
+    static final String BOARD_FILE = System.getProperty("place.board.file");
+    /**
+     * the directory holding the journal every accepted tile change is
+     * appended to, the board snapshots and the usernames, the board is
+     * rebuilt from them on startup, null for no journal
+     */
+    static final String JOURNAL_DIR = System.getProperty("place.journal");
+    /**
+     * when the journal is forced to disk, "always" after every batch,
+     * "interval" once every sync interval or "os" whenever the OS decides
+     */
+    static final String JOURNAL_SYNC = System.getProperty("place.journal.sync", "interval");
+    /** the time between journal batches for the interval and os policies, in milliseconds */
+    static final int JOURNAL_SYNC_INTERVAL = Integer.getInteger("place.journal.interval", 50);
+    /** the size a journal segment may grow to before a new one is started, in bytes */
+    static final long JOURNAL_SEGMENT_SIZE = Long.getLong("place.journal.segment", 64L * 1024 * 1024);
+    /** the time between board snapshots, in seconds, 0 for none */
+    static final int SNAPSHOT_INTERVAL = Integer.getInteger("place.snapshot.interval", 300);
+    /** the number of board snapshots kept, the board's past can be rebuilt back to the oldest */
+    static final int SNAPSHOT_KEEP = Integer.getInteger("place.snapshot.keep", 12);
+    /** the most requests for the board's past waiting to be rebuilt at once, more are refused */
+    static final int HISTORY_QUERIES = Math.max(1, Integer.getInteger("place.history.queries", 16));
+    /** the number of recent changes remembered for each tile, 0 for none */
+    static final int HISTORY_DEPTH = Integer.getInteger("place.history.depth", 8);
+    /**
+     * how tile changes are applied, "striped" on the client threads under
+     * the lock of the changed chunk, or "pipeline" through a ring buffer
+     * onto a single writer thread
+     */
+    static final String UPDATES = System.getProperty("place.updates", "striped");
+    /** the number of changes the pipeline's ring buffer holds, rounded up to a power of two */
+    static final int PIPELINE_SIZE = Integer.getInteger("place.pipeline.size", 65536);
+    /** the number of locks the board is split over, changes to tiles under different locks are applied in parallel */
+    static final int LOCK_STRIPES = Integer.getInteger("place.lock.stripes", 64);
+    /** the side of the square chunks of tiles that share a lock */
+    static final int LOCK_CHUNK = Math.max(1, Integer.getInteger("place.lock.chunk", 16));
+    /**
+     * the leader of the cluster this server joins, as host:port, null to run
+     * on its own or as a leader. Any server can lead; others join it on its
+     * client port
+     */
+    static final String CLUSTER_LEADER = System.getProperty("place.cluster.leader");
+    /**
+     * the secret shared by the servers of a cluster, sent by a server joining
+     * its leader. Null refuses every server that tries to join this one
+     */
+    static final String CLUSTER_SECRET = System.getProperty("place.cluster.secret");
+    /** the side of the square chunks of tiles clients watching part of the board are indexed by */
+    static final int SUBSCRIPTION_CHUNK = Math.max(1, Integer.getInteger("place.subscription.chunk", 32));
+    /** the number of lower levels of detail of the board kept, each half as wide as the one before, 0 for none */
+    static final int PYRAMID_LEVELS = Integer.getInteger("place.pyramid.levels", 6);
+    /** the most client connections open at once, 0 for no limit */
+    static final int MAX_CONNECTIONS = Integer.getInteger("place.connections.max", 0);
+    /** the most client connections that have not logged in yet open at once, 0 for no limit */
+    static final int MAX_PENDING_LOGINS = Integer.getInteger("place.logins.pending", 1024);
+    /** the time a client connection has to log in before it is closed, in milliseconds, 0 for no limit */
+    static final int LOGIN_TIMEOUT = Integer.getInteger("place.login.timeout", 10000);
+    /** the largest frame a client connection may send before it has logged in, in bytes */
+    static final int MAX_LOGIN_FRAME_SIZE = Math.max(64, Integer.getInteger("place.login.frame.max", 4096));
+    /** the number of tile changes a user may make every second, by default one per cool-down */
+    static final double USER_RATE = Double.parseDouble(System.getProperty("place.rate", String.valueOf(1000.0 / ClientHandler.PLACE_COOL_DOWN_TIME)));
+    /** the number of tile changes a user may make in a row before being held to the rate */
+    static final int USER_BURST = Integer.getInteger("place.rate.burst", 1);
+    /** the number of tile changes all users from one address may make every second, 0 for no limit */
+    static final double ADDRESS_RATE = Double.parseDouble(System.getProperty("place.rate.address", "0"));
+    /** the number of tile changes all users from one address may make in a row before being held to the rate */
+    static final int ADDRESS_BURST = Integer.getInteger("place.rate.address.burst", 10);
+    /** the number of levels of detail a user may ask for every second */
+    static final double LEVEL_RATE = Double.parseDouble(System.getProperty("place.level.rate", "2"));
+    /** the number of levels of detail a user may ask for in a row before being held to the rate */
+    static final int LEVEL_BURST = Integer.getInteger("place.level.rate.burst", 4);
+    /** the time between logs of the server's metrics, in seconds, 0 for none */
+    static final int METRICS_INTERVAL = Integer.getInteger("place.metrics.interval", 60);
+    /** whether the server's metrics are shown over JMX */
+    static final boolean METRICS_JMX = Boolean.parseBoolean(System.getProperty("place.metrics.jmx", "true"));
+    /** the number of recent tile changes remembered for clients that reconnect */
+    static final int CHANGE_LOG_SIZE = Integer.getInteger("place.changelog.size", 65536);
+}
@@ -0,0 +1,358 @@
+package place.server;
+
+import place.PlaceLogger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps count of what the server is doing, shows it over JMX and logs it
+ * every metrics interval.
+ *
+ * Everything recorded on the hot paths is either a LongAdder, which threads
+ * add to without contending, or a {@link LatencyHistogram}, so recording
+ * never locks or allocates. Whatever the server already counts elsewhere,
+ * like its clients and their queues, is only read when the metrics are
+ * looked at.
+ *
+ * @author Jake Waclawski
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+    /** the name the metrics are shown under over JMX */
+    private static final String OBJECT_NAME = "place.server:type=ServerMetrics";
+
+    /** the number of logins */
+    private LongAdder logins;
+    /** the number of tile changes placed on the board */
+    private LongAdder tileChanges;
+    /** the number of tile changes refused by the rate limits */
+    private LongAdder tileChangesRefused;
+    /** the number of bytes sent to clients */
+    private LongAdder bytesSent;
+    /** the number of bytes received from clients */
+    private LongAdder bytesReceived;
+    /** the time it took to place each tile change on the board */
+    private LatencyHistogram updateLatency;
+    /** the time it took to queue each change, or batch of changes, for every client watching it */
+    private LatencyHistogram fanOutLatency;
+    /** the timer running the metrics interval, null if it is not started */
+    private ScheduledExecutorService timer;
+    /** the counts at the start of the current interval: logins, tile changes, bytes sent and bytes received */
+    private long[] last;
+    /** the time the current interval started, in nanoseconds */
+    private long lastTime;
+    /** the logins a second over the last interval */
+    private volatile double loginRate;
+    /** the tile changes a second over the last interval */
+    private volatile double tileChangeRate;
+    /** the bytes sent a second over the last interval */
+    private volatile double sentRate;
+    /** the bytes received a second over the last interval */
+    private volatile double receivedRate;
+
+    /**
+     * Create metrics that have counted nothing yet.
+     */
+    ServerMetrics() {
+        this.logins = new LongAdder();
+        this.tileChanges = new LongAdder();
+        this.tileChangesRefused = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.bytesReceived = new LongAdder();
+        this.updateLatency = new LatencyHistogram();
+        this.fanOutLatency = new LatencyHistogram();
+        this.last = new long[4];
+        this.lastTime = System.nanoTime();
+    }
+
+    /**
+     * Show the metrics over JMX, on the platform MBean server.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, ServerMetricsMXBean.class, true), new ObjectName(OBJECT_NAME));
+            PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Metrics shown over JMX as " + OBJECT_NAME);
+        } catch (JMException e) {
+            PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), "Could not show the metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start working out the rates and logging the metrics every interval.
+     * @param interval the time between logs, in seconds
+     */
+    void start(int interval) {
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.scheduleAtFixedRate(this::interval, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * End the current interval. Works out the rates over it and logs the
+     * metrics.
+     */
+    private void interval() {
+        long now = System.nanoTime();
+        double seconds = (now - this.lastTime) / 1e9;
+        long[] counts = { this.logins.sum(), this.tileChanges.sum(), this.bytesSent.sum(), this.bytesReceived.sum() };
+        this.loginRate = (counts[0] - this.last[0]) / seconds;
+        this.tileChangeRate = (counts[1] - this.last[1]) / seconds;
+        this.sentRate = (counts[2] - this.last[2]) / seconds;
+        this.receivedRate = (counts[3] - this.last[3]) / seconds;
+        this.last = counts;
+        this.lastTime = now;
+        PlaceLogger.log(PlaceLogger.LogType.INFO, this.getClass().getName(), String.format("%d client(s), %d waiting to log in, %.1f login(s)/s, %.1f change(s)/s, %d refused, "
+                + "update p50/p99/p99.9/max %.1f/%.1f/%.1f/%.1f us, fan-out p50/p99/p99.9/max %.1f/%.1f/%.1f/%.1f us, "
+                + "%d frame(s) queued (max %d for a client), sent %.1f KB/s, received %.1f KB/s",
+                getConnectedClients(), getPendingLogins(), this.loginRate, this.tileChangeRate, getTileChangesRefused(),
+                getUpdateLatencyP50() / 1e3, getUpdateLatencyP99() / 1e3, getUpdateLatencyP999() / 1e3, getUpdateLatencyMax() / 1e3,
+                getFanOutLatencyP50() / 1e3, getFanOutLatencyP99() / 1e3, getFanOutLatencyP999() / 1e3, getFanOutLatencyMax() / 1e3,
+                getQueuedFrames(), getMaxQueuedFrames(), this.sentRate / 1024, this.receivedRate / 1024));
+    }
+
+    /**
+     * Count a login.
+     */
+    void loggedIn() { this.logins.increment(); }
+
+    /**
+     * Count a tile change placed on the board.
+     * @param nanos the time it took to place it, in nanoseconds
+     */
+    void tileChanged(long nanos) {
+        this.tileChanges.increment();
+        this.updateLatency.record(nanos);
+    }
+
+    /**
+     * Count a tile change refused by the rate limits.
+     */
+    void tileChangeRefused() { this.tileChangesRefused.increment(); }
+
+    /**
+     * Record the time it took to queue a change, or a batch of changes, for
+     * every client watching it.
+     * @param nanos the time, in nanoseconds
+     */
+    void fannedOut(long nanos) { this.fanOutLatency.record(nanos); }
+
+    /**
+     * Count bytes sent to a client.
+     * @param bytes the number of bytes
+     */
+    void sent(long bytes) { this.bytesSent.add(bytes); }
+
+    /**
+     * Count bytes received from a client.
+     * @param bytes the number of bytes
+     */
+    void received(long bytes) { this.bytesReceived.add(bytes); }
+
+    /**
+     * Get the number of clients logged in.
+     * @return the number of clients
+     */
+    @Override
+    public int getConnectedClients() { return PlaceServer.getClientCount(); }
+
+    /**
+     * Get the number of open connections, logged in or not.
+     * @return the number of connections
+     */
+    @Override
+    public int getOpenConnections() { return PlaceServer.getAdmission().getConnections(); }
+
+    /**
+     * Get the number of open connections that have not logged in yet.
+     * @return the number of connections
+     */
+    @Override
+    public int getPendingLogins() { return PlaceServer.getAdmission().getPendingLogins(); }
+
+    /**
+     * Get the number of connections refused because the server was full.
+     * @return the number of connections
+     */
+    @Override
+    public long getRefusedConnections() { return PlaceServer.getAdmission().getRefused(); }
+
+    /**
+     * Get the number of logins since the server started.
+     * @return the number of logins
+     */
+    @Override
+    public long getLogins() { return this.logins.sum(); }
+
+    /**
+     * Get the number of logins a second.
+     * @return the rate
+     */
+    @Override
+    public double getLoginsPerSecond() { return this.loginRate; }
+
+    /**
+     * Get the number of tile changes placed on the board since the server
+     * started.
+     * @return the number of changes
+     */
+    @Override
+    public long getTileChanges() { return this.tileChanges.sum(); }
+
+    /**
+     * Get the number of tile changes placed on the board a second.
+     * @return the rate
+     */
+    @Override
+    public double getTileChangesPerSecond() { return this.tileChangeRate; }
+
+    /**
+     * Get the number of tile changes refused by the rate limits.
+     * @return the number of changes
+     */
+    @Override
+    public long getTileChangesRefused() { return this.tileChangesRefused.sum(); }
+
+    /**
+     * Get the number of tile changes sent to clients, counting a change once
+     * for every client it was sent to.
+     * @return the number of changes
+     */
+    @Override
+    public long getTileChangesSent() { return PlaceServer.getSubscriptions().getTilesSent(); }
+
+    /**
+     * Get the median time it took to place a tile change on the board.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getUpdateLatencyP50() { return this.updateLatency.getPercentile(0.5); }
+
+    /**
+     * Get the 99th percentile of the time it took to place a tile change on
+     * the board.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getUpdateLatencyP99() { return this.updateLatency.getPercentile(0.99); }
+
+    /**
+     * Get the 99.9th percentile of the time it took to place a tile change on
+     * the board.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getUpdateLatencyP999() { return this.updateLatency.getPercentile(0.999); }
+
+    /**
+     * Get the longest time it took to place a tile change on the board.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getUpdateLatencyMax() { return this.updateLatency.getMax(); }
+
+    /**
+     * Get the median time it took to queue a change, or a batch of them, for
+     * every client watching it.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getFanOutLatencyP50() { return this.fanOutLatency.getPercentile(0.5); }
+
+    /**
+     * Get the 99th percentile of the time it took to queue a change, or a
+     * batch of them, for every client watching it.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getFanOutLatencyP99() { return this.fanOutLatency.getPercentile(0.99); }
+
+    /**
+     * Get the 99.9th percentile of the time it took to queue a change, or a
+     * batch of them, for every client watching it.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getFanOutLatencyP999() { return this.fanOutLatency.getPercentile(0.999); }
+
+    /**
+     * Get the longest time it took to queue a change, or a batch of them, for
+     * every client watching it.
+     * @return the time, in nanoseconds
+     */
+    @Override
+    public long getFanOutLatencyMax() { return this.fanOutLatency.getMax(); }
+
+    /**
+     * Get the number of frames waiting to be written to the client that is
+     * furthest behind.
+     * @return the number of frames
+     */
+    @Override
+    public int getMaxQueuedFrames() {
+        int max = 0;
+        for(ClientConnection client : PlaceServer.getClients()) {
+            max = Math.max(max, client.queuedFrames());
+        }
+        return max;
+    }
+
+    /**
+     * Get the number of frames waiting to be written to all clients.
+     * @return the number of frames
+     */
+    @Override
+    public long getQueuedFrames() {
+        long total = 0;
+        for(ClientConnection client : PlaceServer.getClients()) {
+            total += client.queuedFrames();
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of changes waiting in the update pipeline.
+     * @return the number of changes, 0 if there is no pipeline
+     */
+    @Override
+    public long getPipelineQueueDepth() {
+        UpdatePipeline pipeline = PlaceServer.getPipeline();
+        return pipeline == null ? 0 : pipeline.getQueueDepth();
+    }
+
+    /**
+     * Get the number of bytes sent to clients since the server started.
+     * @return the number of bytes
+     */
+    @Override
+    public long getBytesSent() { return this.bytesSent.sum(); }
+
+    /**
+     * Get the number of bytes sent to clients a second.
+     * @return the rate
+     */
+    @Override
+    public double getBytesSentPerSecond() { return this.sentRate; }
+
+    /**
+     * Get the number of bytes received from clients since the server started.
+     * @return the number of bytes
+     */
+    @Override
+    public long getBytesReceived() { return this.bytesReceived.sum(); }
+
+    /**
+     * Get the number of bytes received from clients a second.
+     * @return the rate
+     */
+    @Override
+    public double getBytesReceivedPerSecond() { return this.receivedRate; }
+}
@@ -0,0 +1,170 @@
+package place.server;
+
+/**
+ * The metrics the server shows over JMX, under the name
+ * place.server:type=ServerMetrics. It has to be public for JMX to read it;
+ * the class behind it is not. Latencies are in nanoseconds, and rates are
+ * per second over the last metrics interval.
+ *
+ * @author Jake Waclawski
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * Get the number of clients logged in.
+     * @return the number of clients
+     */
+    int getConnectedClients();
+
+    /**
+     * Get the number of open connections, logged in or not.
+     * @return the number of connections
+     */
+    int getOpenConnections();
+
+    /**
+     * Get the number of open connections that have not logged in yet.
+     * @return the number of connections
+     */
+    int getPendingLogins();
+
+    /**
+     * Get the number of connections refused because the server was full.
+     * @return the number of connections
+     */
+    long getRefusedConnections();
+
+    /**
+     * Get the number of logins since the server started.
+     * @return the number of logins
+     */
+    long getLogins();
+
+    /**
+     * Get the number of logins a second.
+     * @return the rate
+     */
+    double getLoginsPerSecond();
+
+    /**
+     * Get the number of tile changes placed on the board since the server
+     * started.
+     * @return the number of changes
+     */
+    long getTileChanges();
+
+    /**
+     * Get the number of tile changes placed on the board a second.
+     * @return the rate
+     */
+    double getTileChangesPerSecond();
+
+    /**
+     * Get the number of tile changes refused by the rate limits.
+     * @return the number of changes
+     */
+    long getTileChangesRefused();
+
+    /**
+     * Get the number of tile changes sent to clients, counting a change once
+     * for every client it was sent to.
+     * @return the number of changes
+     */
+    long getTileChangesSent();
+
+    /**
+     * Get the median time it took to place a tile change on the board.
+     * @return the time, in nanoseconds
+     */
+    long getUpdateLatencyP50();
+
+    /**
+     * Get the 99th percentile of the time it took to place a tile change on
+     * the board.
+     * @return the time, in nanoseconds
+     */
+    long getUpdateLatencyP99();
+
+    /**
+     * Get the 99.9th percentile of the time it took to place a tile change on
+     * the board.
+     * @return the time, in nanoseconds
+     */
+    long getUpdateLatencyP999();
+
+    /**
+     * Get the longest time it took to place a tile change on the board.
+     * @return the time, in nanoseconds
+     */
+    long getUpdateLatencyMax();
+
+    /**
+     * Get the median time it took to queue a change, or a batch of them, for
+     * every client watching it.
+     * @return the time, in nanoseconds
+     */
+    long getFanOutLatencyP50();
+
+    /**
+     * Get the 99th percentile of the time it took to queue a change, or a
+     * batch of them, for every client watching it.
+     * @return the time, in nanoseconds
+     */
+    long getFanOutLatencyP99();
+
+    /**
+     * Get the 99.9th percentile of the time it took to queue a change, or a
+     * batch of them, for every client watching it.
+     * @return the time, in nanoseconds
+     */
+    long getFanOutLatencyP999();
+
+    /**
+     * Get the longest time it took to queue a change, or a batch of them, for
+     * every client watching it.
+     * @return the time, in nanoseconds
+     */
+    long getFanOutLatencyMax();
+
+    /**
+     * Get the number of frames waiting to be written to the client that is
+     * furthest behind.
+     * @return the number of frames
+     */
+    int getMaxQueuedFrames();
+
+    /**
+     * Get the number of frames waiting to be written to all clients.
+     * @return the number of frames
+     */
+    long getQueuedFrames();
+
+    /**
+     * Get the number of changes waiting in the update pipeline.
+     * @return the number of changes, 0 if there is no pipeline
+     */
+    long getPipelineQueueDepth();
+
+    /**
+     * Get the number of bytes sent to clients since the server started.
+     * @return the number of bytes
+     */
+    long getBytesSent();
+
+    /**
+     * Get the number of bytes sent to clients a second.
+     * @return the rate
+     */
+    double getBytesSentPerSecond();
+
+    /**
+     * Get the number of bytes received from clients since the server started.
+     * @return the number of bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * Get the number of bytes received from clients a second.
+     * @return the rate
+     */
+    double getBytesReceivedPerSecond();
+}
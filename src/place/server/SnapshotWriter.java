@@ -0,0 +1,101 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceLogger;
+import place.network.PlaceCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a snapshot of the board into the journal directory every so often,
+ * while the board keeps taking changes, and hands it to the board history
+ * as a keyframe. On startup the latest snapshot is loaded and only the
+ * journal after it has to be replayed.
+ *
+ * A snapshot does not stop the board. It starts from the board's sequence
+ * number and then copies the tiles one by one, so it holds every change up
+ * to that number and perhaps some later ones. Replaying the journal from the
+ * number on puts every tile back in its latest state either way.
+ *
+ * Each snapshot is the packed board a client is sent (see
+ * PlaceCodec.writeBoard). It is written to a temporary file, forced to disk
+ * and then renamed, so a crash never leaves a partial snapshot behind.
+ *
+ * @author Jake Waclawski
+ */
+class SnapshotWriter {
+    /** the name of the snapshot being written */
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+
+    /** the directory the snapshots are kept in */
+    private Path directory;
+    /** the board */
+    private PlaceBoard board;
+    /** the history the snapshots are added to */
+    private BoardHistory history;
+    /** the timer running the snapshots */
+    private ScheduledExecutorService timer;
+    /** the sequence number of the last snapshot, -1 if there is none yet */
+    private volatile long lastSnapshot;
+
+    /**
+     * Create a new snapshot writer.
+     * @param directory the directory the snapshots are kept in
+     * @param board the board
+     * @param history the history the snapshots are added to
+     * @throws IOException if the directory could not be listed
+     */
+    SnapshotWriter(Path directory, PlaceBoard board, BoardHistory history) throws IOException {
+        this.directory = directory;
+        this.board = board;
+        this.history = history;
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.lastSnapshot = history.isEmpty() ? -1 : board.getSequence();
+    }
+
+    /**
+     * Start writing a snapshot every interval. If there is no snapshot yet,
+     * the first one is written right away so the history has somewhere to
+     * start from.
+     * @param interval the time between snapshots, in seconds
+     */
+    void start(int interval) {
+        this.timer.scheduleWithFixedDelay(this::snapshot, this.lastSnapshot < 0 ? 0 : interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write a snapshot if the board changed since the last one and add it to
+     * the history.
+     */
+    private void snapshot() {
+        long sequence = this.board.getSequence();
+        if(sequence == this.lastSnapshot) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            Path temp = this.directory.resolve(SNAPSHOT_TEMP);
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                OutputStream out = Channels.newOutputStream(file);
+                PlaceCodec.writeBoard(out, this.board, true);
+                out.flush();
+                file.force(true);
+            }
+            long size = Files.size(temp);
+            int deleted = this.history.add(temp, sequence, this.board.getSequence());
+            this.lastSnapshot = sequence;
+            PlaceLogger.log(PlaceLogger.LogType.INFO, SnapshotWriter.class.getName(), "Wrote snapshot at change " + sequence + " (" + size + " bytes) in " + (System.nanoTime() - start) / 1000000 + " ms, deleted " + deleted + " journal segment(s)");
+        } catch (IOException e) {
+            PlaceLogger.log(PlaceLogger.LogType.ERROR, SnapshotWriter.class.getName(), "Could not write a snapshot: " + e.getMessage());
+        }
+    }
+}
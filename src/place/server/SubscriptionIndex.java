@@ -0,0 +1,238 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of which part of the board each client is watching, so a tile
+ * change is only sent to the clients that can see it.
+ *
+ * The board is split into square chunks, and each chunk keeps the set of
+ * clients whose region overlaps it. Sending a change only looks at the
+ * clients of its chunk instead of every client, and clients that still
+ * watch the whole board, which is where every client starts, are kept in a
+ * set of their own.
+ *
+ * @author Jake Waclawski
+ */
+class SubscriptionIndex {
+    /** the region of clients that watch no tiles at all */
+    static final int[] NOWHERE = new int[] { 0, 0, 0, 0 };
+
+    /** the square dimension of the board */
+    private int dim;
+    /** the side of a chunk, in tiles */
+    private int chunk;
+    /** the number of chunks across the board */
+    private int chunksPerRow;
+    /** the clients watching the whole board */
+    private Set<ClientConnection> everywhere;
+    /** the clients watching part of each chunk, by chunk index, chunks nobody watches are left out */
+    private ConcurrentHashMap<Integer, Set<ClientConnection>> chunks;
+    /** the number of tile changes sent to clients */
+    private AtomicLong tilesSent;
+
+    /**
+     * Create an index nobody is in yet.
+     * @param dim the square dimension of the board
+     * @param chunk the side of a chunk, in tiles
+     */
+    SubscriptionIndex(int dim, int chunk) {
+        this.dim = dim;
+        this.chunk = Math.max(1, chunk);
+        this.chunksPerRow = (dim + this.chunk - 1) / this.chunk;
+        this.everywhere = ConcurrentHashMap.newKeySet();
+        this.chunks = new ConcurrentHashMap<>();
+        this.tilesSent = new AtomicLong();
+    }
+
+    /**
+     * Let a client watch the whole board.
+     * @param client the client
+     */
+    synchronized void watchAll(ClientConnection client) {
+        unwatch(client);
+        client.setRegion(null);
+        this.everywhere.add(client);
+    }
+
+    /**
+     * Let a client watch a rectangle of the board, instead of what it watched
+     * before. A rectangle covering the whole board is the same as watchAll().
+     * @param client the client
+     * @param region the top row, left column, height and width of the rectangle,
+     * which must lie on the board
+     */
+    synchronized void watch(ClientConnection client, int[] region) {
+        if(region[0] == 0 && region[1] == 0 && region[2] == this.dim && region[3] == this.dim) {
+            watchAll(client);
+            return;
+        }
+        unwatch(client);
+        this.everywhere.remove(client);
+        client.setRegion(region);
+        for(int row = region[0] / this.chunk; row <= (region[0] + region[2] - 1) / this.chunk; row++) {
+            for(int col = region[1] / this.chunk; col <= (region[1] + region[3] - 1) / this.chunk; col++) {
+                this.chunks.computeIfAbsent(row * this.chunksPerRow + col, index -> ConcurrentHashMap.newKeySet()).add(client);
+            }
+        }
+    }
+
+    /**
+     * Stop sending a client any tile changes, while it watches a lower level
+     * of detail instead.
+     * @param client the client
+     */
+    synchronized void watchNone(ClientConnection client) {
+        unwatch(client);
+        this.everywhere.remove(client);
+        client.setRegion(NOWHERE);
+    }
+
+    /**
+     * Forget a client, once it logged out.
+     * @param client the client
+     */
+    synchronized void remove(ClientConnection client) {
+        unwatch(client);
+        this.everywhere.remove(client);
+    }
+
+    /**
+     * Take a client out of the chunks its current region overlaps.
+     * @param client the client
+     */
+    private void unwatch(ClientConnection client) {
+        int[] region = client.getRegion();
+        if(region == null || region == NOWHERE) {
+            return;
+        }
+        for(int row = region[0] / this.chunk; row <= (region[0] + region[2] - 1) / this.chunk; row++) {
+            for(int col = region[1] / this.chunk; col <= (region[1] + region[3] - 1) / this.chunk; col++) {
+                int index = row * this.chunksPerRow + col;
+                Set<ClientConnection> watching = this.chunks.get(index);
+                if(watching != null) {
+                    watching.remove(client);
+                    if(watching.isEmpty()) {
+                        this.chunks.remove(index);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a tile change to every client watching the tile. The change is
+     * encoded only once.
+     * @param tile the changed tile
+     */
+    void send(PlaceTile tile) {
+        long start = System.nanoTime();
+        byte[] frame = PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+        for(ClientConnection client : this.everywhere) {
+            client.writeFrame(frame);
+            this.tilesSent.incrementAndGet();
+        }
+        Set<ClientConnection> watching = this.chunks.get(chunkOf(tile));
+        if(watching != null) {
+            for(ClientConnection client : watching) {
+                if(contains(client.getRegion(), tile)) {
+                    client.writeFrame(frame);
+                    this.tilesSent.incrementAndGet();
+                }
+            }
+        }
+        PlaceServer.getMetrics().fannedOut(System.nanoTime() - start);
+    }
+
+    /**
+     * Send a batch of tile changes to every client watching any of them.
+     * Clients watching the whole board share one frame holding the whole
+     * batch, the others are each sent just the changes they can see.
+     * @param tiles the changed tiles
+     */
+    void send(PlaceTile[] tiles) {
+        long start = System.nanoTime();
+        if(!this.everywhere.isEmpty()) {
+            byte[] frame = PlaceCodec.encode(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, tiles));
+            for(ClientConnection client : this.everywhere) {
+                client.writeFrame(frame);
+                this.tilesSent.addAndGet(tiles.length);
+            }
+        }
+        if(!this.chunks.isEmpty()) {
+            sendToRegions(tiles);
+        }
+        PlaceServer.getMetrics().fannedOut(System.nanoTime() - start);
+    }
+
+    /**
+     * Send each client watching part of the board the changes in a batch
+     * it can see, if any.
+     * @param tiles the changed tiles
+     */
+    private void sendToRegions(PlaceTile[] tiles) {
+        HashMap<ClientConnection, ArrayList<PlaceTile>> batches = new HashMap<>();
+        for(PlaceTile tile : tiles) {
+            Set<ClientConnection> watching = this.chunks.get(chunkOf(tile));
+            if(watching != null) {
+                for(ClientConnection client : watching) {
+                    if(contains(client.getRegion(), tile)) {
+                        batches.computeIfAbsent(client, key -> new ArrayList<>()).add(tile);
+                    }
+                }
+            }
+        }
+        for(Map.Entry<ClientConnection, ArrayList<PlaceTile>> batch : batches.entrySet()) {
+            batch.getKey().write(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, batch.getValue().toArray(new PlaceTile[0])));
+            this.tilesSent.addAndGet(batch.getValue().size());
+        }
+    }
+
+    /**
+     * Get the index of the chunk a tile is in.
+     * @param tile the tile
+     * @return the chunk index
+     */
+    private int chunkOf(PlaceTile tile) {
+        return (tile.getRow() / this.chunk) * this.chunksPerRow + tile.getCol() / this.chunk;
+    }
+
+    /**
+     * Check whether a tile is inside a region.
+     * @param region the top row, left column, height and width of the region,
+     * null for the whole board
+     * @param tile the tile
+     * @return whether the tile is inside
+     */
+    private static boolean contains(int[] region, PlaceTile tile) {
+        return contains(region, tile.getRow(), tile.getCol());
+    }
+
+    /**
+     * Check whether a position is inside a region.
+     * @param region the top row, left column, height and width of the region,
+     * null for the whole board
+     * @param row the row
+     * @param col the column
+     * @return whether the position is inside
+     */
+    static boolean contains(int[] region, int row, int col) {
+        return region == null || (row >= region[0] && row < region[0] + region[2] && col >= region[1] && col < region[1] + region[3]);
+    }
+
+    /**
+     * Get the number of tile changes sent to clients, counting a change once
+     * for every client it was sent to.
+     * @return the number of changes
+     */
+    long getTilesSent() { return this.tilesSent.get(); }
+}
@@ -0,0 +1,138 @@
+package place.server;
+
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last few changes made to every tile, so anyone can see who
+ * fought over a tile without going through the journal.
+ *
+ * Most tiles are never changed, so a tile only gets room for its history
+ * the first time it changes. Each tile then owns a block in a pool of
+ * primitive arrays holding a ring of its most recent colors, owner ids and
+ * times. The pool grows as more tiles are changed.
+ *
+ * There is a pool for every lock stripe of the board, and a tile's history
+ * is only touched under the lock of its stripe, the one its change is
+ * applied under anyway. Changes in different stripes so never wait on each
+ * other here either.
+ *
+ * @author Jake Waclawski
+ */
+class TileHistory {
+    /** the place colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+    /** the largest array the JVM reliably hands out */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * The blocks of the tiles in one lock stripe.
+     */
+    private static class Pool {
+        /** the number of blocks handed out, block 0 is never used */
+        private int used;
+        /** the number of changes in each block, wrapped between depth and twice the depth once full */
+        private int[] counts;
+        /** the color numbers, depth to a block */
+        private byte[] colors;
+        /** the owner ids, depth to a block */
+        private int[] owners;
+        /** the times, depth to a block */
+        private long[] times;
+    }
+
+    /** the square dimension of the board */
+    private int dim;
+    /** the number of changes remembered per tile */
+    private int depth;
+    /** the block of every tile in the pool of its stripe, 0 if the tile was never changed */
+    private int[] blocks;
+    /** the pools, by lock stripe */
+    private Pool[] pools;
+
+    /**
+     * Create an empty history.
+     * @param dim the square dimension of the board
+     * @param depth the number of changes remembered per tile
+     * @param stripes the number of lock stripes of the board
+     * @throws IllegalArgumentException if the history of every tile would
+     * not fit in an array
+     */
+    TileHistory(int dim, int depth, int stripes) {
+        this.dim = dim;
+        this.depth = Math.max(1, depth);
+        if(((long) dim * dim + 1) * this.depth > MAX_ARRAY_SIZE) {
+            throw new IllegalArgumentException("A history of " + this.depth + " changes per tile does not fit a board " + dim + " tiles wide");
+        }
+        this.blocks = new int[dim * dim];
+        this.pools = new Pool[stripes];
+        int capacity = Math.min(this.blocks.length + 1, Math.max(16, 1024 / stripes));
+        for(int i = 0; i < stripes; i++) {
+            this.pools[i] = new Pool();
+            this.pools[i].used = 1;
+            grow(this.pools[i], capacity);
+        }
+    }
+
+    /**
+     * Make room for a number of blocks in a pool.
+     * @param pool the pool
+     * @param capacity the number of blocks
+     */
+    private void grow(Pool pool, int capacity) {
+        pool.counts = pool.counts == null ? new int[capacity] : Arrays.copyOf(pool.counts, capacity);
+        pool.colors = pool.colors == null ? new byte[capacity * this.depth] : Arrays.copyOf(pool.colors, capacity * this.depth);
+        pool.owners = pool.owners == null ? new int[capacity * this.depth] : Arrays.copyOf(pool.owners, capacity * this.depth);
+        pool.times = pool.times == null ? new long[capacity * this.depth] : Arrays.copyOf(pool.times, capacity * this.depth);
+    }
+
+    /**
+     * Add a change, replacing the oldest one remembered for the tile if its
+     * history is full. The lock of the tile's stripe must be held.
+     * @param tile the changed tile
+     * @param stripe the lock stripe of the tile
+     */
+    void add(PlaceTile tile, int stripe) {
+        Pool pool = this.pools[stripe];
+        int index = tile.getRow() * this.dim + tile.getCol();
+        int block = this.blocks[index];
+        if(block == 0) {
+            if(pool.used == pool.counts.length) {
+                grow(pool, (int) Math.min(this.blocks.length + 1L, pool.counts.length * 2L));
+            }
+            block = pool.used++;
+            this.blocks[index] = block;
+        }
+        int slot = block * this.depth + pool.counts[block] % this.depth;
+        pool.colors[slot] = (byte) tile.getColor().getNumber();
+        pool.owners[slot] = tile.getOwnerId();
+        pool.times[slot] = tile.getTime();
+        pool.counts[block]++;
+        if(pool.counts[block] == 2 * this.depth) {
+            // keeps the count from overflowing without moving the ring
+            pool.counts[block] = this.depth;
+        }
+    }
+
+    /**
+     * Get the changes remembered for a tile, newest first. The lock of the
+     * tile's stripe must be held.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @param stripe the lock stripe of the tile
+     * @return the changes, empty if the tile was never changed
+     */
+    PlaceTile[] get(int row, int col, int stripe) {
+        Pool pool = this.pools[stripe];
+        int block = this.blocks[row * this.dim + col];
+        PlaceTile[] changes = new PlaceTile[block == 0 ? 0 : Math.min(pool.counts[block], this.depth)];
+        for(int i = 0; i < changes.length; i++) {
+            int slot = block * this.depth + (pool.counts[block] - 1 - i) % this.depth;
+            changes[i] = new PlaceTile(row, col, null, COLORS[pool.colors[slot]], pool.times[slot]);
+            changes[i].setOwnerId(pool.owners[slot]);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,308 @@
+package place.server;
+
+import place.PlaceException;
+import place.PlaceLogger;
+import place.PlaceTile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Applies every tile change on a single writer thread, in the style of a
+ * disruptor. Client threads claim a slot in a ring buffer without taking a
+ * lock and publish their change in it. The writer thread takes the changes
+ * in the order their slots were claimed, numbers and timestamps them, adds
+ * them to the journal and places them on the board. A second thread then
+ * broadcasts them, or with the always sync policy the journal's thread once
+ * they are on disk. Either way every change is applied, journalled and
+ * broadcast in one total order.
+ *
+ * A client thread only waits if the ring is full, that is if the broadcast
+ * stage is a whole ring behind. The queue depth and the time spent in each
+ * stage are kept for monitoring. A change that fails to apply is logged and
+ * skipped; should a stage stop anyway, new changes are refused instead of
+ * waiting for a ring that never drains.
+ *
+ * @author Jake Waclawski
+ */
+class UpdatePipeline {
+    /** the time between statistics log lines, in milliseconds */
+    private static final long STATS_INTERVAL = 10000;
+    /** the number of times a stage spins before it parks while waiting */
+    private static final int SPINS = 100;
+
+    /** the mask turning a ring sequence number into a slot */
+    private final int mask;
+    /** the changes, by slot */
+    private final PlaceTile[] tiles;
+    /** the clients that made the changes, by slot */
+    private final ClientConnection[] clients;
+    /** the time each change was published, by slot */
+    private final long[] published;
+    /** the time each change was applied, by slot */
+    private final long[] appliedAt;
+    /** the ring sequence number published in each slot, -1 if none */
+    private final AtomicLongArray available;
+    /** the last ring sequence number claimed by a client */
+    private final AtomicLong claimed;
+    /** the last ring sequence number applied by the writer */
+    private volatile long applied;
+    /** the last ring sequence number broadcast */
+    private volatile long broadcast;
+    /** the writer thread */
+    private final Thread writer;
+    /** the broadcast thread */
+    private final Thread broadcaster;
+    /** whether the writer is about to park */
+    private volatile boolean writerWaiting;
+    /** whether the broadcaster is about to park */
+    private volatile boolean broadcasterWaiting;
+    /** whether a stage has stopped, so no more changes get through */
+    private volatile boolean stopped;
+
+    /** the number of changes applied, only written by the writer */
+    private volatile long changesApplied;
+    /** the total time changes waited for the writer, in nanoseconds, only written by the writer */
+    private volatile long applyLatencyTotal;
+    /** the longest time a change waited for the writer, in nanoseconds, only written by the writer */
+    private volatile long applyLatencyMax;
+    /** the total time changes waited to be broadcast after being applied, in nanoseconds, only written by the broadcaster */
+    private volatile long broadcastLatencyTotal;
+    /** the longest time a change waited to be broadcast after being applied, in nanoseconds, only written by the broadcaster */
+    private volatile long broadcastLatencyMax;
+    /** the deepest the queue has been seen by the writer, only written by the writer */
+    private volatile long maxQueueDepth;
+
+    /**
+     * Create a new pipeline. It does not take changes until started.
+     * @param size the number of slots in the ring, rounded up to a power of two
+     */
+    UpdatePipeline(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.mask = capacity - 1;
+        this.tiles = new PlaceTile[capacity];
+        this.clients = new ClientConnection[capacity];
+        this.published = new long[capacity];
+        this.appliedAt = new long[capacity];
+        this.available = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++) {
+            this.available.set(i, -1);
+        }
+        this.claimed = new AtomicLong(-1);
+        this.applied = -1;
+        this.broadcast = -1;
+        this.writer = new Thread(() -> run(this::write), "Pipeline writer");
+        this.writer.setDaemon(true);
+        this.broadcaster = new Thread(() -> run(this::broadcast), "Pipeline broadcaster");
+        this.broadcaster.setDaemon(true);
+    }
+
+    /**
+     * Start the writer and broadcast stages.
+     */
+    void start() {
+        this.writer.start();
+        this.broadcaster.start();
+    }
+
+    /**
+     * Hand a validated change to the writer. Returns as soon as the change
+     * is in the ring, waiting only while the ring is full.
+     * @param client the client that made the change
+     * @param tile the changed tile
+     * @throws PlaceException if a stage has stopped
+     */
+    void submit(ClientConnection client, PlaceTile tile) throws PlaceException {
+        if(this.stopped) {
+            throw new PlaceException("Tile change refused: the update pipeline stopped");
+        }
+        long sequence = this.claimed.incrementAndGet();
+        while(sequence - this.broadcast > this.mask) {
+            if(this.stopped) {
+                throw new PlaceException("Tile change refused: the update pipeline stopped");
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        int slot = (int) (sequence & this.mask);
+        this.tiles[slot] = tile;
+        this.clients[slot] = client;
+        this.published[slot] = System.nanoTime();
+        // the volatile write makes the slot's contents visible to the writer
+        this.available.set(slot, sequence);
+        if(this.writerWaiting) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    /**
+     * Run a stage until it stops, which it only does if something goes
+     * badly wrong.
+     * @param stage the stage
+     */
+    private void run(Runnable stage) {
+        try {
+            stage.run();
+        } finally {
+            this.stopped = true;
+            PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), Thread.currentThread().getName() + " stopped, tile changes are refused");
+        }
+    }
+
+    /**
+     * Run the writer stage. Applies every published change in ring order.
+     */
+    private void write() {
+        long next = 0;
+        long lastStats = System.currentTimeMillis();
+        long lastApplied = 0;
+        while(true) {
+            long last = next - 1;
+            while(this.available.get((int) ((last + 1) & this.mask)) == last + 1) {
+                last++;
+            }
+            if(last < next) {
+                long wanted = next;
+                BooleanSupplier ready = () -> this.available.get((int) (wanted & this.mask)) == wanted;
+                if(!spin(ready)) {
+                    // announce first and check again, so a wake-up can not be missed
+                    this.writerWaiting = true;
+                    if(!ready.getAsBoolean()) {
+                        LockSupport.park(this);
+                    }
+                    this.writerWaiting = false;
+                }
+                continue;
+            }
+            this.maxQueueDepth = Math.max(this.maxQueueDepth, this.claimed.get() - this.broadcast);
+            for(long sequence = next; sequence <= last; sequence++) {
+                int slot = (int) (sequence & this.mask);
+                try {
+                    PlaceServer.apply(this.clients[slot], this.tiles[slot]);
+                } catch (PlaceException e) {
+                    PlaceLogger.log(PlaceLogger.LogType.WARN, this.getClass().getName(), PlaceLogger.getLineNumber(), e.getMessage());
+                } catch (RuntimeException e) {
+                    PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), "Could not apply " + this.tiles[slot] + ": " + e);
+                }
+                long now = System.nanoTime();
+                this.appliedAt[slot] = now;
+                long latency = now - this.published[slot];
+                this.applyLatencyTotal += latency;
+                this.applyLatencyMax = Math.max(this.applyLatencyMax, latency);
+                this.changesApplied++;
+            }
+            this.applied = last;
+            next = last + 1;
+            if(this.broadcasterWaiting) {
+                LockSupport.unpark(this.broadcaster);
+            }
+
+            if(System.currentTimeMillis() - lastStats >= STATS_INTERVAL) {
+                lastStats = System.currentTimeMillis();
+                if(this.changesApplied != lastApplied) {
+                    lastApplied = this.changesApplied;
+                    PlaceLogger.log(PlaceLogger.LogType.DEBUG, this.getClass().getName(), "Applied " + this.changesApplied + " change(s), queue depth " + getQueueDepth() + " (max " + this.maxQueueDepth + "), apply latency " + getAverageApplyLatency() / 1000 + " us (max " + this.applyLatencyMax / 1000 + " us), broadcast latency " + getAverageBroadcastLatency() / 1000 + " us (max " + this.broadcastLatencyMax / 1000 + " us)");
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the broadcast stage. Broadcasts every applied change in ring order.
+     */
+    private void broadcast() {
+        while(true) {
+            long last = this.applied;
+            long next = this.broadcast + 1;
+            if(last < next) {
+                BooleanSupplier ready = () -> this.applied >= next;
+                if(!spin(ready)) {
+                    this.broadcasterWaiting = true;
+                    if(!ready.getAsBoolean()) {
+                        LockSupport.park(this);
+                    }
+                    this.broadcasterWaiting = false;
+                }
+                continue;
+            }
+            long now = System.nanoTime();
+            for(long sequence = next; sequence <= last; sequence++) {
+                int slot = (int) (sequence & this.mask);
+                long latency = now - this.appliedAt[slot];
+                this.broadcastLatencyTotal += latency;
+                this.broadcastLatencyMax = Math.max(this.broadcastLatencyMax, latency);
+                this.tiles[slot] = null;
+                this.clients[slot] = null;
+            }
+            try {
+                PlaceServer.publish();
+            } catch (RuntimeException e) {
+                PlaceLogger.log(PlaceLogger.LogType.ERROR, this.getClass().getName(), PlaceLogger.getLineNumber(), "Could not broadcast changes: " + e);
+            }
+            this.broadcast = last;
+        }
+    }
+
+    /**
+     * Spin for a while waiting for work, since under load it usually
+     * arrives soon.
+     * @param ready checks whether there is work
+     * @return whether there is work, false if the stage should park
+     */
+    private static boolean spin(BooleanSupplier ready) {
+        for(int i = 0; i < SPINS; i++) {
+            if(ready.getAsBoolean()) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of changes in the ring, published but not broadcast yet.
+     * @return the queue depth
+     */
+    long getQueueDepth() { return Math.max(0, this.claimed.get() - this.broadcast); }
+
+    /**
+     * Get the deepest the queue has been seen.
+     * @return the queue depth
+     */
+    long getMaxQueueDepth() { return this.maxQueueDepth; }
+
+    /**
+     * Get the number of changes applied.
+     * @return the number of changes
+     */
+    long getChangesApplied() { return this.changesApplied; }
+
+    /**
+     * Get the average time a change waited in the ring before being applied.
+     * @return the time, in nanoseconds
+     */
+    long getAverageApplyLatency() { return this.changesApplied == 0 ? 0 : this.applyLatencyTotal / this.changesApplied; }
+
+    /**
+     * Get the longest time a change waited in the ring before being applied.
+     * @return the time, in nanoseconds
+     */
+    long getMaxApplyLatency() { return this.applyLatencyMax; }
+
+    /**
+     * Get the average time between a change being applied and broadcast.
+     * @return the time, in nanoseconds
+     */
+    long getAverageBroadcastLatency() {
+        long broadcastCount = this.broadcast + 1;
+        return broadcastCount <= 0 ? 0 : this.broadcastLatencyTotal / broadcastCount;
+    }
+
+    /**
+     * Get the longest time between a change being applied and broadcast.
+     * @return the time, in nanoseconds
+     */
+    long getMaxBroadcastLatency() { return this.broadcastLatencyMax; }
+}